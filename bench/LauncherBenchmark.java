@@ -0,0 +1,573 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+import java.util.zip.ZipEntry;
+
+/**
+ * Measures the launcher: copying and extracting artifacts, log file write
+ * throughput under contention, console record formatting and a cold start
+ * from {@code Main.main} to the {@code winstone.Launcher} invocation.
+ *
+ * Every input is generated from a fixed seed and every benchmark runs a fixed
+ * number of warm-up and measured rounds, reporting the median, so two runs on
+ * the same machine compare directly. Build with the launcher classes on the
+ * class path and run:
+ * <pre>
+ * javac -cp build/classes -d build/bench bench/LauncherBenchmark.java bench/winstone/Launcher.java
+ * java -cp build/classes:build/bench LauncherBenchmark --out=results.properties
+ * java -cp build/classes:build/bench LauncherBenchmark --baseline=results.properties --tolerance=10
+ * </pre>
+ * With {@code --baseline=} every result is compared against the earlier run
+ * and the process exits with 1 if any got slower by more than the tolerance,
+ * in percent. {@code --only=} restricts the run to benchmarks whose name
+ * starts with the given prefix.
+ */
+public class LauncherBenchmark
+{
+  private static final long SEED = 20140204L;
+  private static final int WARMUP = 3;
+  private static final int ROUNDS = 7;
+  private static final int[] SIZES = { 65536, 1048576, 16777216 };
+  private static final int[] THREADS = { 1, 4, 16, 64 };
+  private static final int LINE = 120;
+  private static final int LOG_BYTES = 33554432;
+
+  private final File work;
+  private final String only;
+  private final Map<String, Result> results = new LinkedHashMap<String, Result>();
+
+  LauncherBenchmark(File work, String only)
+  {
+    this.work = work;
+    this.only = only;
+  }
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    File out = null;
+    File baseline = null;
+    double tolerance = 10.0D;
+    String only = "";
+    for (int i = 0; i < args.length; i++)
+    {
+      String a = args[i];
+      if (a.startsWith("--out=")) {
+        out = new File(a.substring(6));
+      } else if (a.startsWith("--baseline=")) {
+        baseline = new File(a.substring(11));
+      } else if (a.startsWith("--tolerance=")) {
+        tolerance = Double.parseDouble(a.substring(12));
+      } else if (a.startsWith("--only=")) {
+        only = a.substring(7);
+      }
+    }
+    File work = File.createTempFile("launcher-bench", "");
+    work.delete();
+    work.mkdirs();
+    LauncherBenchmark b = new LauncherBenchmark(work, only);
+    try
+    {
+      b.copy();
+      b.extract();
+      b.logFile();
+      b.format();
+      b.coldStart();
+    }
+    finally
+    {
+      delete(work);
+    }
+    if (out != null) {
+      b.save(out);
+    }
+    if ((baseline != null) && (!b.compare(baseline, tolerance))) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * {@link Main#copyStream} from memory to a file.
+   */
+  void copy()
+    throws Exception
+  {
+    for (int s = 0; s < SIZES.length; s++)
+    {
+      final byte[] data = data(SIZES[s]);
+      final File target = new File(this.work, "copy.bin");
+      run("copyStream." + SIZES[s], "ms", new Body()
+      {
+        public double run()
+          throws Exception
+        {
+          long start = System.nanoTime();
+          OutputStream os = new FileOutputStream(target);
+          try
+          {
+            Main.copyStream(new ByteArrayInputStream(data), os);
+          }
+          finally
+          {
+            os.close();
+          }
+          return millis(start);
+        }
+      });
+    }
+  }
+
+  /**
+   * {@link Extractor#extract} of a compressed jar entry, which is how
+   * {@code winstone.jar} and the daemon libraries come out of the war, and an
+   * {@link ExtractionCache} hit on the same entry.
+   */
+  void extract()
+    throws Exception
+  {
+    for (int s = 0; s < SIZES.length; s++)
+    {
+      File jar = new File(this.work, "extract-" + SIZES[s] + ".jar");
+      JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar));
+      try
+      {
+        jos.putNextEntry(new ZipEntry("payload.jar"));
+        jos.write(data(SIZES[s]));
+      }
+      finally
+      {
+        jos.close();
+      }
+      final URL res = new URL("jar:" + jar.toURI() + "!/payload.jar");
+      final File target = new File(this.work, "extract.bin");
+      run("extract." + SIZES[s], "ms", new Body()
+      {
+        public double run()
+          throws Exception
+        {
+          long start = System.nanoTime();
+          Extractor.extract(res, target);
+          return millis(start);
+        }
+      });
+      final File cache = new File(this.work, "cache");
+      cache.mkdirs();
+      new ExtractionCache(cache).extract(res, "payload", ".jar");
+      run("extract.cached." + SIZES[s], "ms", new Body()
+      {
+        public double run()
+          throws Exception
+        {
+          long start = System.nanoTime();
+          new ExtractionCache(cache).extract(res, "payload", ".jar");
+          return millis(start);
+        }
+      });
+    }
+  }
+
+  /**
+   * Throughput of {@link LogFileOutputStream} in each of its modes, with the
+   * same total volume split over more and more writing threads.
+   */
+  void logFile()
+    throws Exception
+  {
+    String[][] modes = { { "sync" }, { "async", "--logfileAsync" }, { "mapped", "--logfileMapped" } };
+    final byte[] line = line();
+    for (int m = 0; m < modes.length; m++)
+    {
+      final LogFileSettings settings = LogFileSettings.parse((String[])Arrays.copyOfRange(modes[m], 1, modes[m].length));
+      for (int t = 0; t < THREADS.length; t++)
+      {
+        final int threads = THREADS[t];
+        run("logfile." + modes[m][0] + "." + threads, "MB/s", new Body()
+        {
+          public double run()
+            throws Exception
+          {
+            File f = new File(LauncherBenchmark.this.work, "bench.log");
+            f.delete();
+            final LogFileOutputStream los = new LogFileOutputStream(f, settings);
+            final int lines = LOG_BYTES / LINE / threads;
+            final CountDownLatch go = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++) {
+              new Thread()
+              {
+                public void run()
+                {
+                  try
+                  {
+                    go.await();
+                    for (int j = 0; j < lines; j++) {
+                      los.write(line, 0, line.length);
+                    }
+                  }
+                  catch (Exception e)
+                  {
+                    e.printStackTrace();
+                  }
+                  finally
+                  {
+                    done.countDown();
+                  }
+                }
+              }.start();
+            }
+            long start = System.nanoTime();
+            go.countDown();
+            done.await();
+            los.close();
+            return (double)lines * threads * LINE / 1048576.0D / (millis(start) / 1000.0D);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Time and allocation per record of {@link ColorFormatter#format} against
+   * the {@link SimpleFormatter} it replaces.
+   */
+  void format()
+    throws Exception
+  {
+    final LogRecord[] records = new LogRecord[1024];
+    Random r = new Random(SEED);
+    for (int i = 0; i < records.length; i++)
+    {
+      LogRecord lr = new LogRecord(i % 10 == 0 ? Level.WARNING : Level.INFO, "Record {0} of the benchmark with some text " + r.nextInt());
+      lr.setParameters(new Object[] { Integer.valueOf(i) });
+      lr.setSourceClassName("hudson.model.Benchmark");
+      lr.setSourceMethodName("run");
+      lr.setMillis(1391500000000L + i * 137L);
+      records[i] = lr;
+    }
+    SimpleFormatter[] formatters = { new SimpleFormatter(), new ColorFormatter() };
+    String[] names = { "simple", "color" };
+    final int n = 200000;
+    for (int f = 0; f < formatters.length; f++)
+    {
+      final SimpleFormatter formatter = formatters[f];
+      run("format." + names[f], "ns/op", new Body()
+      {
+        public double run()
+        {
+          long start = System.nanoTime();
+          for (int i = 0; i < n; i++) {
+            formatter.format(records[(i & 0x3FF)]);
+          }
+          return (System.nanoTime() - start) / (double)n;
+        }
+      });
+      run("format." + names[f] + ".alloc", "B/op", new Body()
+      {
+        public double run()
+        {
+          long before = allocated();
+          for (int i = 0; i < n; i++) {
+            formatter.format(records[(i & 0x3FF)]);
+          }
+          return before < 0L ? 0.0D : (allocated() - before) / (double)n;
+        }
+      });
+    }
+  }
+
+  /**
+   * A fresh JVM running {@code Main} from a war that holds the launcher
+   * classes and a stub {@code winstone.jar}, with an empty extraction folder
+   * each time. Reports the wall clock time of the whole process and the
+   * point at which {@code winstone.Launcher.main} was entered, taken from the
+   * launcher's own startup report.
+   */
+  void coldStart()
+    throws Exception
+  {
+    final File war = new File(this.work, "bench.war");
+    buildWar(war);
+    final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+    final List<Double> launched = new ArrayList<Double>();
+    run("coldstart.process", "ms", new Body()
+    {
+      public double run()
+        throws Exception
+      {
+        File run = new File(LauncherBenchmark.this.work, "run");
+        delete(run);
+        new File(run, "cache").mkdirs();
+        File report = new File(run, "report.json");
+        ProcessBuilder pb = new ProcessBuilder(new String[] { java, "-cp", war.getPath(), "Main", "--extractedFilesFolder=" + new File(run, "cache"), "--webroot=" + new File(run, "webroot"), "--startupReportFile=" + report });
+        pb.environment().put("JENKINS_HOME", new File(run, "home").getPath());
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(new File(run, "out.txt"));
+        long start = System.nanoTime();
+        int rc = pb.start().waitFor();
+        double ms = millis(start);
+        if (rc != 0) {
+          throw new IOException("The launcher exited with " + rc + ", see " + new File(run, "out.txt"));
+        }
+        launched.add(Double.valueOf(launcherMain(report)));
+        return ms;
+      }
+    });
+    if (launched.size() >= ROUNDS)
+    {
+      // the measured rounds of the runs above
+      double[] samples = new double[ROUNDS];
+      for (int i = 0; i < ROUNDS; i++) {
+        samples[i] = ((Double)launched.get(launched.size() - ROUNDS + i)).doubleValue();
+      }
+      record("coldstart.launcherMain", "ms", samples);
+    }
+  }
+
+  /**
+   * Start of the {@code winstone.Launcher.main} phase in a startup report.
+   */
+  private static double launcherMain(File report)
+    throws IOException
+  {
+    String json = new String(read(report), "UTF-8");
+    int i = json.indexOf("\"name\":\"winstone.Launcher.main\"");
+    int s = json.indexOf("\"startMillis\":", i) + 14;
+    return Double.parseDouble(json.substring(s, json.indexOf(',', s)));
+  }
+
+  private static void buildWar(File war)
+    throws IOException
+  {
+    ByteArrayOutputStream stub = new ByteArrayOutputStream();
+    JarOutputStream jos = new JarOutputStream(stub);
+    jos.putNextEntry(new JarEntry("winstone/Launcher.class"));
+    jos.write(read(LauncherBenchmark.class.getResource("/winstone/Launcher.class")));
+    jos.close();
+
+    jos = new JarOutputStream(new FileOutputStream(war));
+    try
+    {
+      jos.putNextEntry(new JarEntry("winstone.jar"));
+      jos.write(stub.toByteArray());
+      File classes = new File(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+      File[] files = classes.listFiles();
+      for (int i = 0; i < files.length; i++) {
+        if (files[i].getName().endsWith(".class"))
+        {
+          jos.putNextEntry(new JarEntry(files[i].getName()));
+          jos.write(read(files[i].toURI().toURL()));
+        }
+      }
+    }
+    catch (java.net.URISyntaxException e)
+    {
+      throw new IOException(e.toString());
+    }
+    finally
+    {
+      jos.close();
+    }
+  }
+
+  private static abstract interface Body
+  {
+    public abstract double run()
+      throws Exception;
+  }
+
+  private static final class Result
+  {
+    final String unit;
+    final double median;
+    final double min;
+    final double max;
+
+    Result(String unit, double[] samples)
+    {
+      double[] s = (double[])samples.clone();
+      Arrays.sort(s);
+      this.unit = unit;
+      this.median = s[(s.length / 2)];
+      this.min = s[0];
+      this.max = s[(s.length - 1)];
+    }
+
+    /**
+     * Whether a bigger number is better, as with throughput.
+     */
+    boolean higherIsBetter()
+    {
+      return this.unit.endsWith("/s");
+    }
+  }
+
+  private void run(String name, String unit, Body body)
+    throws Exception
+  {
+    if (!name.startsWith(this.only)) {
+      return;
+    }
+    for (int i = 0; i < WARMUP; i++) {
+      body.run();
+    }
+    double[] samples = new double[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++)
+    {
+      System.gc();
+      samples[i] = body.run();
+    }
+    record(name, unit, samples);
+  }
+
+  private void record(String name, String unit, double[] samples)
+  {
+    Result r = new Result(unit, samples);
+    this.results.put(name, r);
+    System.out.println(String.format("%-32s %12.3f %-6s (min %.3f, max %.3f)", new Object[] { name, Double.valueOf(r.median), unit, Double.valueOf(r.min), Double.valueOf(r.max) }));
+  }
+
+  private void save(File out)
+    throws IOException
+  {
+    Writer w = new OutputStreamWriter(new FileOutputStream(out), "ISO-8859-1");
+    try
+    {
+      w.write("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version") + ", " + System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors() + " cpus\n");
+      for (Map.Entry<String, Result> e : this.results.entrySet()) {
+        w.write((String)e.getKey() + "=" + ((Result)e.getValue()).median + "\n");
+      }
+    }
+    finally
+    {
+      w.close();
+    }
+  }
+
+  private boolean compare(File baseline, double tolerance)
+    throws IOException
+  {
+    Properties p = new Properties();
+    InputStream in = new FileInputStream(baseline);
+    try
+    {
+      p.load(in);
+    }
+    finally
+    {
+      in.close();
+    }
+    boolean ok = true;
+    for (Map.Entry<String, Result> e : this.results.entrySet())
+    {
+      String before = p.getProperty((String)e.getKey());
+      if (before != null)
+      {
+        Result r = (Result)e.getValue();
+        double b = Double.parseDouble(before);
+        double change = b == 0.0D ? 0.0D : (r.median - b) / b * 100.0D;
+        boolean worse = r.higherIsBetter() ? change < -tolerance : change > tolerance;
+        if (worse)
+        {
+          ok = false;
+          System.out.println(String.format("REGRESSION %-32s %12.3f -> %.3f %s (%+.1f%%)", new Object[] { e.getKey(), Double.valueOf(b), Double.valueOf(r.median), r.unit, Double.valueOf(change) }));
+        }
+      }
+    }
+    return ok;
+  }
+
+  private static byte[] data(int size)
+  {
+    // compressible like a jar, yet not trivially so
+    byte[] b = new byte[size];
+    Random r = new Random(SEED);
+    for (int i = 0; i < size; i++) {
+      b[i] = ((byte)(32 + r.nextInt(64)));
+    }
+    return b;
+  }
+
+  private static byte[] line()
+  {
+    byte[] b = data(LINE);
+    b[(LINE - 1)] = 10;
+    return b;
+  }
+
+  /**
+   * Bytes allocated so far by the current thread, or -1 if the JVM doesn't
+   * tell.
+   */
+  private static long allocated()
+  {
+    try
+    {
+      Object mx = ManagementFactory.getThreadMXBean();
+      Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", new Class[] { Long.TYPE });
+      return ((Long)m.invoke(mx, new Object[] { Long.valueOf(Thread.currentThread().getId()) })).longValue();
+    }
+    catch (Exception e) {}
+    return -1L;
+  }
+
+  private static double millis(long start)
+  {
+    return (System.nanoTime() - start) / 1000000.0D;
+  }
+
+  private static byte[] read(File f)
+    throws IOException
+  {
+    return read(f.toURI().toURL());
+  }
+
+  private static byte[] read(URL url)
+    throws IOException
+  {
+    InputStream in = url.openStream();
+    try
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Main.copyStream(in, out);
+      return out.toByteArray();
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private static void delete(File f)
+  {
+    File[] files = f.listFiles();
+    if (files != null) {
+      for (int i = 0; i < files.length; i++) {
+        delete(files[i]);
+      }
+    }
+    f.delete();
+  }
+}
@@ -0,0 +1,13 @@
+package winstone;
+
+/**
+ * Stands in for Winstone in the cold start benchmark: it has what
+ * {@code Main} looks up reflectively and returns at once, so the time measured
+ * is the launcher's alone.
+ */
+public class Launcher
+{
+  public static String USAGE;
+
+  public static void main(String[] args) {}
+}
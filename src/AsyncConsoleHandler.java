@@ -0,0 +1,217 @@
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import javax.management.ObjectName;
+
+/**
+ * Takes the place of a {@link ConsoleHandler} so that logging threads only
+ * queue their records; formatting and writing to the console happen on a
+ * single background thread.
+ *
+ * The background thread takes whatever has queued up, formats and writes it
+ * all, then flushes once. When the queue is full, the logging thread either
+ * waits or the record is dropped and counted, depending on the overflow
+ * policy.
+ */
+final class AsyncConsoleHandler
+  extends Handler
+  implements AsyncConsoleHandlerMBean
+{
+  private final BlockingQueue<LogRecord> queue;
+  private final boolean dropWhenFull;
+  private final Writer writer;
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private long droppedReported;
+  private final Thread thread;
+  private volatile boolean closed;
+
+  /**
+   * Replaces the given handler, taking over its level, filter, formatter and
+   * encoding. Like {@link ConsoleHandler} this writes to whatever
+   * {@link System#err} is at this point.
+   */
+  AsyncConsoleHandler(ConsoleHandler h, int capacity, boolean dropWhenFull)
+  {
+    setLevel(h.getLevel());
+    setFilter(h.getFilter());
+    setFormatter(h.getFormatter());
+    setErrorManager(h.getErrorManager());
+    this.queue = new ArrayBlockingQueue<LogRecord>(capacity);
+    this.dropWhenFull = dropWhenFull;
+    this.writer = open(System.err, h.getEncoding());
+    this.thread = new Thread("Console log writer")
+    {
+      public void run()
+      {
+        AsyncConsoleHandler.this.drainLoop();
+      }
+    };
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  private static Writer open(OutputStream out, String encoding)
+  {
+    if (encoding != null) {
+      try
+      {
+        return new OutputStreamWriter(out, encoding);
+      }
+      catch (UnsupportedEncodingException e) {}
+    }
+    return new OutputStreamWriter(out);
+  }
+
+  public void publish(LogRecord record)
+  {
+    if ((this.closed) || (!isLoggable(record))) {
+      return;
+    }
+    // the caller has to be worked out on the logging thread, not later
+    record.getSourceClassName();
+    if (this.dropWhenFull)
+    {
+      if (!this.queue.offer(record)) {
+        this.dropped.incrementAndGet();
+      }
+    }
+    else
+    {
+      try
+      {
+        this.queue.put(record);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Nothing to do: the background thread flushes after each batch.
+   */
+  public void flush() {}
+
+  /**
+   * Writes out whatever is still queued, then stops the background thread.
+   */
+  public void close()
+  {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    this.thread.interrupt();
+    try
+    {
+      this.thread.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    List<LogRecord> rest = new ArrayList<LogRecord>();
+    this.queue.drainTo(rest);
+    write(rest);
+  }
+
+  public int getQueueDepth()
+  {
+    return this.queue.size();
+  }
+
+  public int getQueueCapacity()
+  {
+    return this.queue.size() + this.queue.remainingCapacity();
+  }
+
+  public long getWrittenRecords()
+  {
+    return this.written.get();
+  }
+
+  public long getDroppedRecords()
+  {
+    return this.dropped.get();
+  }
+
+  private void drainLoop()
+  {
+    List<LogRecord> batch = new ArrayList<LogRecord>();
+    while (!this.closed)
+    {
+      try
+      {
+        batch.add(this.queue.take());
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      this.queue.drainTo(batch);
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  private void write(List<LogRecord> batch)
+  {
+    Formatter f = getFormatter();
+    try
+    {
+      for (int i = 0; i < batch.size(); i++)
+      {
+        String s;
+        try
+        {
+          s = f.format(batch.get(i));
+        }
+        catch (RuntimeException e)
+        {
+          reportError(null, e, ErrorManager.FORMAT_FAILURE);
+          continue;
+        }
+        this.writer.write(s);
+      }
+      long d = this.dropped.get();
+      if (d != this.droppedReported)
+      {
+        this.writer.write("[" + (d - this.droppedReported) + " log records dropped, the console could not keep up]" + System.getProperty("line.separator"));
+        this.droppedReported = d;
+      }
+      this.writer.flush();
+      this.written.addAndGet(batch.size());
+    }
+    catch (Exception e)
+    {
+      reportError(null, e, ErrorManager.WRITE_FAILURE);
+    }
+  }
+
+  /**
+   * Makes the counters visible over JMX, if the platform MBean server is
+   * available.
+   */
+  void register(int index)
+  {
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("jenkins.launcher:type=AsyncConsoleHandler,name=" + index));
+    }
+    catch (Exception e) {}
+  }
+}
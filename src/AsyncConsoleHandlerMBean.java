@@ -0,0 +1,23 @@
+/**
+ * Management interface of {@link AsyncConsoleHandler}, registered as
+ * {@code jenkins.launcher:type=AsyncConsoleHandler}.
+ */
+public interface AsyncConsoleHandlerMBean
+{
+  /**
+   * Records waiting to be formatted and written.
+   */
+  int getQueueDepth();
+
+  int getQueueCapacity();
+
+  /**
+   * Records written to the console so far.
+   */
+  long getWrittenRecords();
+
+  /**
+   * Records discarded because the queue was full.
+   */
+  long getDroppedRecords();
+}
@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring of bytes between the threads that log and the one thread that
+ * writes the log file.
+ *
+ * Producers only copy their bytes into the ring under a short lock; they never
+ * wait for the disk. The writer thread drains everything that has accumulated
+ * in one batched call to the {@link Sink}, straight out of the ring, at most
+ * every flush interval or sooner once the ring is half full. When the ring is
+ * full, producers either wait for the writer or drop their output, in which
+ * case the dropped bytes are counted and a marker is written to the log.
+ */
+final class AsyncLogBuffer
+{
+  interface Sink
+  {
+    void write(byte[] b, int off, int len)
+      throws IOException;
+
+    void flush()
+      throws IOException;
+  }
+
+  private final Sink sink;
+  private final byte[] ring;
+  private final long flushInterval;
+  private final boolean dropWhenFull;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = this.lock.newCondition();
+  private final Condition notFull = this.lock.newCondition();
+  /**
+   * Total bytes ever put into the ring, and total bytes ever taken out.
+   * Positions in the ring are these modulo its size.
+   */
+  private long tail;
+  private long head;
+  private boolean stopped;
+  private final AtomicLong dropped = new AtomicLong();
+  private long droppedReported;
+  private final Thread writer;
+
+  AsyncLogBuffer(Sink sink, int capacity, long flushInterval, boolean dropWhenFull)
+  {
+    this.sink = sink;
+    this.ring = new byte[capacity];
+    this.flushInterval = flushInterval;
+    this.dropWhenFull = dropWhenFull;
+    this.writer = new Thread("Log file writer")
+    {
+      public void run()
+      {
+        AsyncLogBuffer.this.drainLoop();
+      }
+    };
+    this.writer.setDaemon(true);
+    this.writer.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread("Log file writer shutdown")
+    {
+      public void run()
+      {
+        try
+        {
+          AsyncLogBuffer.this.stop();
+        }
+        catch (IOException e) {}
+      }
+    });
+  }
+
+  /**
+   * Number of bytes discarded so far, because the ring was full or the sink
+   * failed.
+   */
+  long getDroppedBytes()
+  {
+    return this.dropped.get();
+  }
+
+  void put(byte[] b, int off, int len)
+    throws IOException
+  {
+    this.lock.lock();
+    try
+    {
+      while (len > 0)
+      {
+        if (this.stopped)
+        {
+          while (this.head != this.tail) {
+            this.notFull.awaitUninterruptibly();
+          }
+          this.sink.write(b, off, len);
+          return;
+        }
+        int free = this.ring.length - (int)(this.tail - this.head);
+        if ((free < len) && (this.dropWhenFull))
+        {
+          this.dropped.addAndGet(len);
+          return;
+        }
+        if (free == 0)
+        {
+          this.notEmpty.signal();
+          this.notFull.awaitUninterruptibly();
+        }
+        else
+        {
+          int n = Math.min(free, len);
+          int pos = (int)(this.tail % this.ring.length);
+          int first = Math.min(n, this.ring.length - pos);
+          System.arraycopy(b, off, this.ring, pos, first);
+          System.arraycopy(b, off + first, this.ring, 0, n - first);
+          this.tail += n;
+          off += n;
+          len -= n;
+          if (this.tail - this.head >= this.ring.length / 2) {
+            this.notEmpty.signal();
+          }
+        }
+      }
+    }
+    finally
+    {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Wakes the writer up without waiting for it.
+   */
+  void flush()
+  {
+    this.lock.lock();
+    try
+    {
+      this.notEmpty.signal();
+    }
+    finally
+    {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Tells the writer thread to write out everything buffered so far and
+   * waits for it to finish; from then on output goes straight to the sink.
+   */
+  void stop()
+    throws IOException
+  {
+    this.lock.lock();
+    try
+    {
+      if (this.stopped) {
+        return;
+      }
+      this.stopped = true;
+      this.notEmpty.signal();
+    }
+    finally
+    {
+      this.lock.unlock();
+    }
+    try
+    {
+      this.writer.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drainLoop()
+  {
+    for (;;)
+    {
+      long from;
+      long to;
+      boolean last;
+      this.lock.lock();
+      try
+      {
+        if ((this.tail - this.head < this.ring.length / 2) && (!this.stopped)) {
+          try
+          {
+            this.notEmpty.await(this.flushInterval, TimeUnit.MILLISECONDS);
+          }
+          catch (InterruptedException e) {}
+        }
+        from = this.head;
+        to = this.tail;
+        last = this.stopped;
+      }
+      finally
+      {
+        this.lock.unlock();
+      }
+      try
+      {
+        // only this thread ever moves head, so the bytes between head and the
+        // tail observed above stay put while they're written out unlocked
+        writeOut(from, to);
+        reportDropped();
+        this.sink.flush();
+      }
+      catch (IOException e)
+      {
+        // System.err may well be this very buffer, so there is nobody to
+        // tell; account for the lost output like for a full buffer
+        this.dropped.addAndGet(to - from);
+      }
+      this.lock.lock();
+      try
+      {
+        this.head = to;
+        this.notFull.signalAll();
+        if ((last) && (this.head == this.tail)) {
+          return;
+        }
+      }
+      finally
+      {
+        this.lock.unlock();
+      }
+    }
+  }
+
+  private void writeOut(long from, long to)
+    throws IOException
+  {
+    if (from == to) {
+      return;
+    }
+    int pos = (int)(from % this.ring.length);
+    int n = (int)(to - from);
+    int first = Math.min(n, this.ring.length - pos);
+    this.sink.write(this.ring, pos, first);
+    if (first < n) {
+      this.sink.write(this.ring, 0, n - first);
+    }
+  }
+
+  private void reportDropped()
+    throws IOException
+  {
+    long d = this.dropped.get();
+    if (d != this.droppedReported)
+    {
+      byte[] msg = ("\n[" + (d - this.droppedReported) + " bytes of log output were dropped]\n").getBytes();
+      this.sink.write(msg, 0, msg.length);
+      this.droppedReported = d;
+    }
+  }
+}
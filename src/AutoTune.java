@@ -0,0 +1,194 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@code --autoTune}: sizes Winstone's request handling for the resources
+ * the JVM actually has, instead of the fixed 5/40/5 handler defaults.
+ *
+ * The inputs are the number of CPUs, lowered to the cgroup CPU quota if
+ * there is one (cgroup v2 {@code cpu.max} or v1 {@code cpu.cfs_quota_us}),
+ * the maximum heap, and the cgroup memory limit (v2 {@code memory.max} or v1
+ * {@code memory.limit_in_bytes}). The model:
+ * <ul>
+ * <li>{@code --handlerCountMax}: Jenkins request threads mostly wait on I/O,
+ * so 20 per CPU, between 20 and 400. A busy handler is assumed to use up to
+ * 2 MB of heap, and handlers get at most a quarter of the heap. Under a
+ * memory limit, each thread's 1 MB stack must also fit in half of what the
+ * limit leaves besides the heap.</li>
+ * <li>{@code --handlerCountStartup}: one per CPU, at least 2, so a burst as
+ * wide as the machine doesn't wait for threads to be created.</li>
+ * <li>{@code --handlerCountMaxIdle}: two per CPU, at least 5, so threads
+ * aren't torn down and recreated between bursts.</li>
+ * <li>{@code --httpKeepAliveTimeout} (and {@code --httpsKeepAliveTimeout}
+ * with {@code --httpsPort}): an idle connection holds a socket but no
+ * thread, so hosts with more than the default 40 handlers keep connections
+ * for 15 seconds to spare browsers the reconnects; others keep Winstone's 5
+ * seconds.</li>
+ * </ul>
+ * An option given on the command line is always kept as is. Every value is
+ * printed along with the reason for it.
+ */
+final class AutoTune
+{
+  private static final long MB = 1048576L;
+
+  private AutoTune() {}
+
+  static boolean isRequested(String[] args)
+  {
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--autoTune")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static void apply(List<String> arguments)
+  {
+    int cores = Runtime.getRuntime().availableProcessors();
+    long quota = cpuQuota();
+    String cpuSource = "available processors";
+    if ((quota > 0L) && (quota < cores))
+    {
+      cores = (int)quota;
+      cpuSource = "cgroup CPU quota";
+    }
+    long heap = Runtime.getRuntime().maxMemory();
+    long limit = memoryLimit();
+    System.out.println("Auto-tuning Winstone for " + cores + " CPUs (" + cpuSource + "), " + heap / MB + " MB max heap" + (limit > 0L ? ", " + limit / MB + " MB cgroup memory limit:" : ", no memory limit:"));
+
+    int max = clamp(cores * 20, 20, 400);
+    String why = "20 per CPU, between 20 and 400";
+    int heapBound = (int)Math.max(1L, heap / 4L / (2L * MB));
+    if (heapBound < max)
+    {
+      max = heapBound;
+      why = "capped by the heap, at 2 MB per busy handler within a quarter of it";
+    }
+    if ((limit > 0L) && (limit > heap))
+    {
+      int stackBound = (int)Math.max(1L, (limit - heap) / 2L / MB);
+      if (stackBound < max)
+      {
+        max = stackBound;
+        why = "capped by the memory limit, at a 1 MB stack per thread within half of what it leaves besides the heap";
+      }
+    }
+    set(arguments, "handlerCountMax", max, why);
+    set(arguments, "handlerCountStartup", Math.min(max, Math.max(2, cores)), "one per CPU, at least 2");
+    set(arguments, "handlerCountMaxIdle", Math.min(max, Math.max(5, cores * 2)), "two per CPU, at least 5");
+
+    int keepAlive = max > 40 ? 15000 : 5000;
+    String kwhy = max > 40 ? "more handlers than the default 40, so idle connections are kept longer" : "no more handlers than the default 40, so Winstone's default";
+    set(arguments, "httpKeepAliveTimeout", keepAlive, kwhy);
+    if (isSet(arguments, "httpsPort")) {
+      set(arguments, "httpsKeepAliveTimeout", keepAlive, kwhy);
+    }
+  }
+
+  private static void set(List<String> arguments, String option, int value, String why)
+  {
+    if (isSet(arguments, option))
+    {
+      System.out.println("  --" + option + " kept as given");
+      return;
+    }
+    arguments.add("--" + option + "=" + value);
+    System.out.println("  --" + option + "=" + value + ": " + why);
+  }
+
+  private static boolean isSet(List<String> arguments, String option)
+  {
+    for (Iterator<String> itr = arguments.iterator(); itr.hasNext();)
+    {
+      String a = itr.next();
+      if (a.startsWith("--" + option + "=")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int clamp(int v, int min, int max)
+  {
+    return Math.max(min, Math.min(max, v));
+  }
+
+  /**
+   * CPUs allowed by the cgroup quota, rounded up, or -1 without a quota.
+   */
+  private static long cpuQuota()
+  {
+    String v2 = read("/sys/fs/cgroup/cpu.max");
+    if (v2 != null)
+    {
+      String[] f = v2.split("\\s+");
+      if ((f.length == 2) && (!f[0].equals("max"))) {
+        return ceil(parse(f[0]), parse(f[1]));
+      }
+      return -1L;
+    }
+    long quota = parse(read("/sys/fs/cgroup/cpu/cpu.cfs_quota_us"));
+    long period = parse(read("/sys/fs/cgroup/cpu/cpu.cfs_period_us"));
+    return ceil(quota, period);
+  }
+
+  private static long ceil(long quota, long period)
+  {
+    if ((quota <= 0L) || (period <= 0L)) {
+      return -1L;
+    }
+    return (quota + period - 1L) / period;
+  }
+
+  /**
+   * Memory limit of the cgroup in bytes, or -1 without one.
+   */
+  private static long memoryLimit()
+  {
+    String v2 = read("/sys/fs/cgroup/memory.max");
+    long limit = v2 != null ? parse(v2) : parse(read("/sys/fs/cgroup/memory/memory.limit_in_bytes"));
+    // cgroup v1 reports "no limit" as a huge number
+    return (limit <= 0L) || (limit >= 4611686018427387904L) ? -1L : limit;
+  }
+
+  private static long parse(String s)
+  {
+    if (s == null) {
+      return -1L;
+    }
+    try
+    {
+      return Long.parseLong(s.trim());
+    }
+    catch (NumberFormatException e) {}
+    return -1L;
+  }
+
+  private static String read(String path)
+  {
+    File f = new File(path);
+    if (!f.isFile()) {
+      return null;
+    }
+    try
+    {
+      BufferedReader in = new BufferedReader(new FileReader(f));
+      try
+      {
+        return in.readLine();
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (IOException e) {}
+    return null;
+  }
+}
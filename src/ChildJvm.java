@@ -0,0 +1,39 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Command line for running the launcher again in a child JVM, as
+ * {@code --appCDS} and {@code --supervise} do.
+ */
+final class ChildJvm
+{
+  private ChildJvm() {}
+
+  /**
+   * The same {@code java} with the same JVM options and class path as this
+   * one, plus the given options, running {@code Main} with the given
+   * arguments. Options the launcher sets on its children itself are not
+   * passed on from this JVM.
+   */
+  static List<String> command(List<String> options, List<String> args)
+  {
+    List<String> cmd = new ArrayList<String>();
+    cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    for (Iterator itr = ManagementFactory.getRuntimeMXBean().getInputArguments().iterator(); itr.hasNext();)
+    {
+      String a = (String)itr.next();
+      if ((!a.startsWith("-XX:SharedArchiveFile=")) && (!a.startsWith("-XX:ArchiveClassesAtExit=")) && (!a.startsWith("-Xlog:cds")) && (!a.startsWith("-Djenkins.launcher."))) {
+        cmd.add(a);
+      }
+    }
+    cmd.addAll(options);
+    cmd.add("-cp");
+    cmd.add(System.getProperty("java.class.path"));
+    cmd.add("Main");
+    cmd.addAll(args);
+    return cmd;
+  }
+}
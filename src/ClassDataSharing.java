@@ -0,0 +1,313 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import sun.misc.Signal;
+import sun.misc.SignalHandler;
+
+/**
+ * {@code --appCDS}: runs Jenkins in a child JVM that uses a dynamic class data
+ * sharing archive of the classes it loaded last time, from Winstone and the
+ * webapp alike.
+ *
+ * The archive lives in the extraction folder, named after the Jenkins version,
+ * a hash of where the war and the JVM are installed and a hash of the war's
+ * table of contents and of the JVM's version. When there is no archive for
+ * that name yet, the child runs with {@code -XX:ArchiveClassesAtExit} so the
+ * JVM writes one when Jenkins shuts down cleanly; from then on it runs with
+ * {@code -XX:SharedArchiveFile}. Archives for the same war and JVM installation
+ * but other contents are deleted, so replacing the war or upgrading the JVM
+ * invalidates them, while those of other instances sharing the folder stay.
+ * {@code SIGALRM}, which makes {@code --logfile} reopen the log, is passed on
+ * to the child, which is the one that writes it.
+ * Each run records how long loading and starting Winstone took, and a run
+ * with the archive prints that next to the time recorded without it.
+ *
+ * Dynamic archives need Java 13 or later; elsewhere the option is ignored.
+ */
+final class ClassDataSharing
+{
+  /**
+   * Set on the child JVM to {@code dump} or {@code use}, telling it not to
+   * relaunch again and which timing to record.
+   */
+  static final String PROPERTY = "jenkins.launcher.cds";
+  private final File archive;
+  private final File timings;
+  private final String installation;
+
+  /**
+   * The archive is for the class path of this JVM, normally just the war,
+   * which is also the one the child gets.
+   */
+  ClassDataSharing(File folder, String version)
+    throws IOException
+  {
+    String classPath = System.getProperty("java.class.path");
+    this.installation = Long.toHexString(installation(classPath));
+    String name = "jenkins-" + (version.length() > 0 ? version : "unknown") + "-" + this.installation + "-" + Long.toHexString(hash(classPath));
+    this.archive = new File(folder, name + ".jsa");
+    this.timings = new File(folder, name + ".properties");
+  }
+
+  static boolean isRequested(String[] args)
+  {
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--appCDS")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static boolean isSupported()
+  {
+    String v = System.getProperty("java.specification.version", "1");
+    try
+    {
+      return (!v.startsWith("1.")) && (Integer.parseInt(v) >= 13);
+    }
+    catch (NumberFormatException e) {}
+    return false;
+  }
+
+  /**
+   * JVM options for a child that uses the archive, or records it if there
+   * is none yet.
+   */
+  List<String> jvmOptions()
+  {
+    removeStale();
+    boolean use = this.archive.isFile();
+    List<String> options = new ArrayList<String>();
+    if (use) {
+      options.add("-XX:SharedArchiveFile=" + this.archive.getAbsolutePath());
+    } else {
+      options.add("-XX:ArchiveClassesAtExit=" + this.archive.getAbsolutePath());
+    }
+    // the dump lists every class it can't archive; failures to use the
+    // archive are logged under cds+dynamic and still show
+    options.add("-Xlog:cds=off");
+    options.add("-D" + PROPERTY + "=" + (use ? "use" : "dump") + ":" + this.timings.getAbsolutePath());
+    System.out.println((use ? "Using class data sharing archive " : "Recording class data sharing archive ") + this.archive);
+    return options;
+  }
+
+  /**
+   * Runs the launcher again in a child JVM with the archive and returns its
+   * exit code.
+   */
+  int relaunch(String[] args)
+    throws IOException, InterruptedException
+  {
+    List<String> rest = new ArrayList<String>(Arrays.asList(args));
+    rest.remove("--appCDS");
+    List<String> cmd = ChildJvm.command(jvmOptions(), rest);
+
+    final Process child = new ProcessBuilder(cmd).inheritIO().start();
+    Thread hook = new Thread("Jenkins child JVM shutdown")
+    {
+      public void run()
+      {
+        child.destroy();
+        try
+        {
+          child.waitFor();
+        }
+        catch (InterruptedException e) {}
+      }
+    };
+    Runtime.getRuntime().addShutdownHook(hook);
+    if (File.pathSeparatorChar == ':') {
+      forward("ALRM", child);
+    }
+    int rc = child.waitFor();
+    try
+    {
+      Runtime.getRuntime().removeShutdownHook(hook);
+    }
+    catch (IllegalStateException e) {}
+    return rc;
+  }
+
+  /**
+   * Called in the child JVM once Winstone is up: records how long loading and
+   * starting it took and, with the archive in use, how that compares with the
+   * run that recorded the archive.
+   */
+  static void report()
+  {
+    String p = System.getProperty(PROPERTY);
+    if (p == null) {
+      return;
+    }
+    long load = StartupProfile.duration("load winstone.Launcher");
+    long start = StartupProfile.duration("winstone.Launcher.main");
+    if ((load < 0L) || (start < 0L)) {
+      return;
+    }
+    long ms = (load + start) / 1000000L;
+    boolean use = p.startsWith("use:");
+    File f = new File(p.substring(p.indexOf(':') + 1));
+    try
+    {
+      Properties timings = new Properties();
+      if (f.isFile())
+      {
+        InputStream in = new FileInputStream(f);
+        try
+        {
+          timings.load(in);
+        }
+        finally
+        {
+          in.close();
+        }
+      }
+      String without = timings.getProperty("withoutArchive");
+      if ((use) && (without != null))
+      {
+        long before = Long.parseLong(without);
+        System.out.println("Class data sharing: Winstone loaded and started in " + ms + " ms, " + before + " ms without the archive (" + (before - ms) + " ms saved)");
+      }
+      timings.setProperty(use ? "withArchive" : "withoutArchive", String.valueOf(ms));
+      OutputStream out = new FileOutputStream(f);
+      try
+      {
+        timings.store(out, "Time to load and start Winstone, in ms");
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    catch (IOException e)
+    {
+      System.err.println("Failed to record class data sharing timings in " + f + ": " + e);
+    }
+    catch (NumberFormatException e) {}
+  }
+
+  /**
+   * Sends the signal on to the child when this JVM gets it, instead of dying
+   * of it. Needs {@code Process.pid()}, which every JVM with dynamic archives
+   * has.
+   */
+  private static void forward(final String signal, Process child)
+  {
+    final String pid;
+    try
+    {
+      pid = String.valueOf(Process.class.getMethod("pid", new Class[0]).invoke(child, new Object[0]));
+    }
+    catch (Exception e)
+    {
+      return;
+    }
+    Signal.handle(new Signal(signal), new SignalHandler()
+    {
+      public void handle(Signal s)
+      {
+        try
+        {
+          new ProcessBuilder(new String[] { "kill", "-" + signal, pid }).start();
+        }
+        catch (IOException e)
+        {
+          System.err.println("Failed to pass SIG" + signal + " on to Jenkins: " + e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Hash of where the war and the JVM are, which tells the archives of this
+   * instance from those of others that share the extraction folder.
+   */
+  private static long installation(String classPath)
+  {
+    CRC32 crc = new CRC32();
+    update(crc, System.getProperty("java.home") + File.pathSeparator + classPath);
+    return crc.getValue();
+  }
+
+  /**
+   * Hash of the version of the JVM the archive is for and of the names, CRCs
+   * and sizes of the entries of the war, which the zip central directory holds
+   * without reading the entries.
+   */
+  private static long hash(String classPath)
+    throws IOException
+  {
+    CRC32 crc = new CRC32();
+    update(crc, System.getProperty("java.vm.version"));
+    String[] path = classPath.split(File.pathSeparator);
+    for (int i = 0; i < path.length; i++)
+    {
+      File f = new File(path[i]);
+      if (f.isFile())
+      {
+        ZipFile zip = new ZipFile(f);
+        try
+        {
+          for (Enumeration en = zip.entries(); en.hasMoreElements();)
+          {
+            ZipEntry e = (ZipEntry)en.nextElement();
+            update(crc, e.getName() + ":" + e.getCrc() + ":" + e.getSize());
+          }
+        }
+        finally
+        {
+          zip.close();
+        }
+      }
+      else
+      {
+        update(crc, f.lastModified() + ":" + f.length());
+      }
+    }
+    return crc.getValue();
+  }
+
+  private static void update(CRC32 crc, String s)
+  {
+    byte[] b = s.getBytes();
+    crc.update(b, 0, b.length);
+  }
+
+  /**
+   * Deletes the archives and timings this war and JVM recorded before either
+   * changed; those of other installations are theirs to clean up.
+   */
+  private void removeStale()
+  {
+    File[] files = this.archive.getParentFile().listFiles();
+    if (files == null) {
+      return;
+    }
+    for (int i = 0; i < files.length; i++)
+    {
+      String n = files[i].getName();
+      String ext = n.endsWith(".jsa") ? ".jsa" : n.endsWith(".properties") ? ".properties" : null;
+      if ((ext == null) || (!n.startsWith("jenkins-")) || (files[i].equals(this.archive)) || (files[i].equals(this.timings))) {
+        continue;
+      }
+      // jenkins-<version>-<installation>-<contents>; the version may hold dashes
+      String rest = n.substring(0, n.length() - ext.length());
+      int dash = rest.lastIndexOf('-');
+      if ((dash > 0) && (rest.substring(0, dash).endsWith("-" + this.installation))) {
+        files[i].delete();
+      }
+    }
+  }
+}
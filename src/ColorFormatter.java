@@ -1,50 +1,206 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
+/**
+ * {@link SimpleFormatter} that colors warnings and errors.
+ *
+ * With the default {@link SimpleFormatter} layout, the record is appended
+ * piece by piece, color codes included, into a {@link StringBuilder} that
+ * each thread reuses, instead of going through {@link String#format}; the
+ * timestamp text is only recomputed when the second changes. A layout
+ * configured through {@code java.util.logging.SimpleFormatter.format} is
+ * honored by going through {@link SimpleFormatter} as before. How many
+ * records were formatted and how long that took shows in
+ * {@link LoggingStats}.
+ */
 public class ColorFormatter
   extends SimpleFormatter
 {
+  private final boolean customFormat = (System.getProperty(FORMAT) != null) || (LogManager.getLogManager().getProperty(FORMAT) != null);
+
   public String format(LogRecord record)
   {
-    String body = super.format(record);
+    long start = System.nanoTime();
+    try
+    {
+      return doFormat(record);
+    }
+    finally
+    {
+      LoggingStats.formatted(System.nanoTime() - start);
+    }
+  }
+
+  private String doFormat(LogRecord record)
+  {
     int v = record.getLevel().intValue();
-    if (v >= SEVERE) {
-      return "\033[31m" + body + "\033[0m";
+    String color = v >= SEVERE ? RED : v >= WARNING ? YELLOW : null;
+    if (this.customFormat)
+    {
+      String body = super.format(record);
+      return color == null ? body : color + body + RESET;
+    }
+    Buffer buf = (Buffer)BUFFER.get();
+    StringBuilder sb = buf.sb;
+    sb.setLength(0);
+    if (color != null) {
+      sb.append(color);
+    }
+    sb.append(buf.timestamp(record.getMillis())).append(' ');
+    if (record.getSourceClassName() != null)
+    {
+      sb.append(record.getSourceClassName());
+      if (record.getSourceMethodName() != null) {
+        sb.append(' ').append(record.getSourceMethodName());
+      }
+    }
+    else
+    {
+      sb.append(record.getLoggerName());
+    }
+    sb.append(NL).append(record.getLevel().getLocalizedName()).append(": ").append(formatMessage(record));
+    if (record.getThrown() != null)
+    {
+      StringWriter sw = new StringWriter();
+      PrintWriter pw = new PrintWriter(sw);
+      pw.println();
+      record.getThrown().printStackTrace(pw);
+      pw.close();
+      sb.append(sw.getBuffer());
+    }
+    sb.append(NL);
+    if (color != null) {
+      sb.append(RESET);
+    }
+    String s = sb.toString();
+    if (sb.capacity() > 65536) {
+      buf.sb = new StringBuilder(1024);
     }
-    if (v >= WARNING) {
-      return "\033[33m" + body + "\033[0m";
+    return s;
+  }
+
+  /**
+   * Per-thread scratch space of {@link #format(LogRecord)}.
+   */
+  private static final class Buffer
+  {
+    StringBuilder sb = new StringBuilder(1024);
+    private final SimpleDateFormat date = new SimpleDateFormat("MMM dd, yyyy h:mm:ss ");
+    private final SimpleDateFormat amPm = new SimpleDateFormat("a");
+    private long second = Long.MIN_VALUE;
+    private String stamp;
+
+    /**
+     * Same text as {@code %1$tb %1$td, %1$tY %1$tl:%1$tM:%1$tS %1$Tp}.
+     */
+    String timestamp(long millis)
+    {
+      long s = millis / 1000L;
+      if (s != this.second)
+      {
+        Date d = new Date(millis);
+        this.stamp = this.date.format(d) + this.amPm.format(d).toUpperCase();
+        this.second = s;
+      }
+      return this.stamp;
     }
-    return body;
   }
-  
+
   public static void install()
   {
-    try
+    install(new String[0]);
+  }
+
+  /**
+   * Colors the root console handlers when running on a terminal and, with
+   * {@code --asyncConsole}, moves their formatting and writing to a
+   * background thread. {@code --asyncConsoleQueueSize=} sets how many records
+   * can wait (default 10000), which implies {@code --asyncConsole}, and
+   * {@code --asyncConsoleOverflow=block|drop} what happens when that many are
+   * waiting (default block).
+   */
+  public static void install(String[] args)
+  {
+    boolean async = false;
+    int queueSize = 10000;
+    boolean dropWhenFull = false;
+    for (int i = 0; i < args.length; i++)
     {
-      if (System.class.getMethod("console", new Class[0]).invoke(null, new Object[0]) == null) {
-        return;
+      String a = args[i];
+      if (a.equals("--asyncConsole"))
+      {
+        async = true;
+      }
+      else if (a.startsWith("--asyncConsoleQueueSize="))
+      {
+        async = true;
+        queueSize = (int)Math.min(Integer.MAX_VALUE, LogFileSettings.number(a, queueSize));
+      }
+      else if (a.startsWith("--asyncConsoleOverflow="))
+      {
+        String v = a.substring("--asyncConsoleOverflow=".length());
+        if (v.equals("drop")) {
+          dropWhenFull = true;
+        } else if (v.equals("block")) {
+          dropWhenFull = false;
+        } else {
+          System.err.println("The asyncConsoleOverflow value is neither block nor drop. Ignoring.");
+        }
       }
     }
+    boolean color;
+    try
+    {
+      color = System.class.getMethod("console", new Class[0]).invoke(null, new Object[0]) != null;
+    }
     catch (Throwable t)
     {
-      return;
+      color = false;
     }
-    Handler[] handlers = Logger.getLogger("").getHandlers();
+    Logger root = Logger.getLogger("");
+    Handler[] handlers = root.getHandlers();
     for (int i = 0; i < handlers.length; i++)
     {
       Handler h = handlers[i];
-      if ((h.getClass() == ConsoleHandler.class) && 
-        (h.getFormatter().getClass() == SimpleFormatter.class)) {
-        h.setFormatter(new ColorFormatter());
+      if (h.getClass() == ConsoleHandler.class)
+      {
+        if ((color) && (h.getFormatter().getClass() == SimpleFormatter.class)) {
+          h.setFormatter(new ColorFormatter());
+        }
+        if (async)
+        {
+          AsyncConsoleHandler ah = new AsyncConsoleHandler((ConsoleHandler)h, queueSize, dropWhenFull);
+          root.removeHandler(h);
+          root.addHandler(ah);
+          h.close();
+          ah.register(i);
+        }
       }
     }
   }
-  
+
   private static final int SEVERE = Level.SEVERE.intValue();
   private static final int WARNING = Level.WARNING.intValue();
+  private static final String RED = "\033[31m";
+  private static final String YELLOW = "\033[33m";
+  private static final String RESET = "\033[0m";
+  private static final String FORMAT = "java.util.logging.SimpleFormatter.format";
+  private static final String NL = System.getProperty("line.separator");
+  private static final ThreadLocal BUFFER = new ThreadLocal()
+  {
+    protected Object initialValue()
+    {
+      return new ColorFormatter.Buffer();
+    }
+  };
 }
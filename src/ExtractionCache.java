@@ -0,0 +1,260 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of the files the launcher extracts from the war, kept in
+ * the {@code --extractedFilesFolder} directory.
+ *
+ * Each extracted file is named after the CRC and size of the war entry it came
+ * from, or the modification time and size of a resource that isn't an entry,
+ * such as the war itself, so a restart with the same war finds the file
+ * already in place and skips the copy. Files extracted from other versions of the war are removed
+ * when the current one is looked up. All of this happens while holding a lock
+ * file for the artifact in the folder, so several launchers sharing one folder
+ * don't step on each other.
+ *
+ * Launchers of different wars may share the folder too, as with
+ * {@code --sharedWebroot}. So every launcher holds a shared lock on
+ * {@code .<file>.inuse} for each file it uses, for as long as it runs, and
+ * the files of other versions are only removed once nobody holds that lock.
+ */
+final class ExtractionCache
+{
+  /**
+   * File locks are held on behalf of the whole JVM, so threads of one launcher
+   * extracting the same artifact also need to exclude each other in memory.
+   */
+  private static final Map<String, Object> MONITORS = new HashMap<String, Object>();
+  /**
+   * The in-use locks, held open until the JVM exits.
+   */
+  private static final List<RandomAccessFile> IN_USE = new ArrayList<RandomAccessFile>();
+  private final File directory;
+
+  ExtractionCache(File directory)
+  {
+    this.directory = directory;
+  }
+
+  File extract(URL res, String fileName, String suffix)
+    throws IOException
+  {
+    String ext = suffix.startsWith(".") ? suffix : "." + suffix;
+    long[] key = describe(res);
+    String name = fileName + "-" + Long.toHexString(key[0]) + "-" + key[1] + ext;
+    File target = new File(this.directory, name);
+
+    File lockName = new File(this.directory, "." + fileName + ".lock");
+    synchronized (monitor(lockName))
+    {
+      RandomAccessFile lockFile = new RandomAccessFile(lockName, "rw");
+      try
+      {
+        FileLock lock = lockFile.getChannel().lock();
+        try
+        {
+          if ((!target.isFile()) || (target.length() != key[1])) {
+            copy(res, target);
+          }
+          holdInUse(name);
+          removeStale(fileName, suffix, ext, name);
+        }
+        finally
+        {
+          lock.release();
+        }
+      }
+      finally
+      {
+        lockFile.close();
+      }
+    }
+    return target;
+  }
+
+  private static Object monitor(File lockFile)
+  {
+    String key = lockFile.getAbsolutePath();
+    synchronized (MONITORS)
+    {
+      Object m = MONITORS.get(key);
+      if (m == null)
+      {
+        m = new Object();
+        MONITORS.put(key, m);
+      }
+      return m;
+    }
+  }
+
+  /**
+   * Returns the CRC and the size of the resource. For an entry inside the war
+   * both come straight from the zip central directory, without reading the
+   * entry itself. Anything else is described by its modification time and
+   * size where the connection knows them, since reading all of it for the
+   * CRC would take as long as the copy that this is meant to skip.
+   */
+  private static long[] describe(URL res)
+    throws IOException
+  {
+    URLConnection con = res.openConnection();
+    if ((con instanceof JarURLConnection))
+    {
+      JarEntry e = ((JarURLConnection)con).getJarEntry();
+      if ((e != null) && (e.getCrc() != -1L) && (e.getSize() != -1L)) {
+        return new long[] { e.getCrc(), e.getSize() };
+      }
+    }
+    else
+    {
+      long size = con.getContentLengthLong();
+      long modified = con.getLastModified();
+      if ((con instanceof HttpURLConnection)) {
+        ((HttpURLConnection)con).disconnect();
+      }
+      if ((size >= 0L) && (modified > 0L)) {
+        return new long[] { modified, size };
+      }
+    }
+    CRC32 crc = new CRC32();
+    long size = 0L;
+    InputStream in = res.openStream();
+    try
+    {
+      byte[] buf = new byte[8192];
+      int len;
+      while ((len = in.read(buf)) > 0)
+      {
+        crc.update(buf, 0, len);
+        size += len;
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+    return new long[] { crc.getValue(), size };
+  }
+
+  /**
+   * Extracts into a scratch file first and renames it into place, so that a
+   * launcher killed half way through never leaves a truncated file under the
+   * cached name.
+   */
+  private void copy(URL res, File target)
+    throws IOException
+  {
+    File tmp = File.createTempFile(target.getName(), ".tmp", this.directory);
+    try
+    {
+      Extractor.extract(res, tmp);
+      target.delete();
+      if (!tmp.renameTo(target)) {
+        throw new IOException("Failed to rename " + tmp + " to " + target);
+      }
+    }
+    finally
+    {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Takes the shared in-use lock on the cached file, unless this JVM already
+   * holds it.
+   */
+  private void holdInUse(String name)
+    throws IOException
+  {
+    RandomAccessFile inUse = new RandomAccessFile(new File(this.directory, "." + name + ".inuse"), "rw");
+    try
+    {
+      inUse.getChannel().lock(0L, Long.MAX_VALUE, true);
+    }
+    catch (OverlappingFileLockException e)
+    {
+      inUse.close();
+      return;
+    }
+    synchronized (IN_USE)
+    {
+      IN_USE.add(inUse);
+    }
+  }
+
+  /**
+   * Deletes what earlier launches left behind for the same artifact: cache
+   * entries of other war versions that no running launcher holds on to,
+   * scratch files of interrupted extractions, and the random temp files of
+   * launchers that predate this cache and were killed before their
+   * {@code deleteOnExit} ran.
+   */
+  private void removeStale(String fileName, String suffix, String ext, String current)
+  {
+    Pattern cached = Pattern.compile(Pattern.quote(fileName) + "-[0-9a-f]+-[0-9]+" + Pattern.quote(ext));
+    Pattern stale = Pattern.compile(Pattern.quote(fileName) + "(-[0-9a-f]+-[0-9]+" + Pattern.quote(ext) + ".*\\.tmp|[0-9]+" + Pattern.quote(suffix) + ")");
+
+    File[] files = this.directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (int i = 0; i < files.length; i++)
+    {
+      String n = files[i].getName();
+      if (n.equals(current)) {
+        continue;
+      }
+      if (cached.matcher(n).matches()) {
+        removeIfUnused(files[i]);
+      } else if (stale.matcher(n).matches()) {
+        files[i].delete();
+      }
+    }
+  }
+
+  private void removeIfUnused(File f)
+  {
+    File inUseFile = new File(this.directory, "." + f.getName() + ".inuse");
+    try
+    {
+      RandomAccessFile inUse = new RandomAccessFile(inUseFile, "rw");
+      try
+      {
+        FileLock unused = inUse.getChannel().tryLock();
+        if (unused == null) {
+          return;
+        }
+        try
+        {
+          f.delete();
+        }
+        finally
+        {
+          unused.release();
+        }
+      }
+      finally
+      {
+        inUse.close();
+      }
+      inUseFile.delete();
+    }
+    catch (IOException e) {}
+    catch (OverlappingFileLockException e) {}
+  }
+}
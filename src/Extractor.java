@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.jar.JarEntry;
+
+/**
+ * Copies launcher artifacts out of the war (or the war itself) onto disk
+ * through NIO channels.
+ *
+ * A plain file is copied with {@link FileChannel#transferFrom} so the bytes
+ * never enter the Java heap. Anything else, typically a compressed entry of the
+ * war, is inflated on the heap regardless, so it is read a megabyte at a time
+ * into a heap buffer and written out with positional channel writes.
+ * The target file is preallocated to the expected size up front. If the
+ * channel path fails, the copy is redone with {@link Main#copyStream}. The
+ * entries the webroot and the bundled plugins are exploded from are copied
+ * the same way, without the timing.
+ */
+final class Extractor
+{
+  private static final int BUFFER_SIZE = 1048576;
+
+  private Extractor() {}
+
+  /**
+   * Copies the resource into the given file, overwriting it, and prints how
+   * long that took.
+   */
+  static long extract(URL source, File target)
+    throws IOException
+  {
+    long start = System.nanoTime();
+    long size = sizeOf(source);
+    long n;
+    try
+    {
+      n = copyChannels(source, target, size);
+    }
+    catch (IOException e)
+    {
+      n = copyStream(source, target);
+    }
+    catch (UnsupportedOperationException e)
+    {
+      n = copyStream(source, target);
+    }
+    StartupProfile.moved(n);
+    long ms = (System.nanoTime() - start) / 1000000L;
+    System.out.println("Extracted " + source + " (" + n + " bytes) in " + ms + " ms");
+    return n;
+  }
+
+  /**
+   * Size of the resource if it can be learned without reading it, or -1.
+   */
+  private static long sizeOf(URL source)
+    throws IOException
+  {
+    File f = toFile(source);
+    if (f != null) {
+      return f.length();
+    }
+    URLConnection con = source.openConnection();
+    if ((con instanceof JarURLConnection))
+    {
+      JarEntry e = ((JarURLConnection)con).getJarEntry();
+      if (e != null) {
+        return e.getSize();
+      }
+    }
+    return -1L;
+  }
+
+  static File toFile(URL source)
+  {
+    if (!"file".equals(source.getProtocol())) {
+      return null;
+    }
+    try
+    {
+      return new File(source.toURI());
+    }
+    catch (URISyntaxException e)
+    {
+      return null;
+    }
+    catch (IllegalArgumentException e) {}
+    return null;
+  }
+
+  private static long copyChannels(URL source, File target, long size)
+    throws IOException
+  {
+    File f = toFile(source);
+    if (f != null) {
+      return copy(f, target);
+    }
+    InputStream in = source.openStream();
+    try
+    {
+      return copy(in, target, size);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Copies the file into the other, overwriting it, with
+   * {@link FileChannel#transferFrom}; without printing anything, for
+   * {@link PluginExpander}.
+   */
+  static long copy(File source, File target)
+    throws IOException
+  {
+    FileInputStream in = new FileInputStream(source);
+    try
+    {
+      FileChannel src = in.getChannel();
+      long total = src.size();
+      RandomAccessFile raf = new RandomAccessFile(target, "rw");
+      try
+      {
+        FileChannel out = raf.getChannel();
+        raf.setLength(total);
+        long n = 0L;
+        while (n < total)
+        {
+          long c = out.transferFrom(src, n, total - n);
+          if (c <= 0L) {
+            throw new IOException("Short transfer from " + source + " at " + n + " of " + total);
+          }
+          n += c;
+        }
+        return n;
+      }
+      finally
+      {
+        raf.close();
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Copies what is left of the stream into the file, overwriting it, and
+   * leaves the stream open; the size is preallocated if known, otherwise -1.
+   * Prints nothing, as {@link WebrootExploder} and {@link PluginExpander}
+   * call it for every entry.
+   */
+  static long copy(InputStream in, File target, long size)
+    throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(target, "rw");
+    try
+    {
+      FileChannel out = raf.getChannel();
+      if (size > 0L) {
+        raf.setLength(size);
+      }
+      // the entry is inflated into the heap anyway, so a direct buffer
+      // would only add a copy; batching still saves write calls
+      byte[] buf = new byte[size < 0L ? BUFFER_SIZE : (int)Math.min(BUFFER_SIZE, Math.max(size, 8192L))];
+      long n = 0L;
+      int len = 0;
+      int r;
+      do
+      {
+        r = in.read(buf, len, buf.length - len);
+        if (r > 0) {
+          len += r;
+        }
+        if ((r < 0) || (len == buf.length))
+        {
+          ByteBuffer b = ByteBuffer.wrap(buf, 0, len);
+          while (b.hasRemaining()) {
+            n += out.write(b, n);
+          }
+          len = 0;
+        }
+      } while (r >= 0);
+      raf.setLength(n);
+      return n;
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  private static long copyStream(URL source, File target)
+    throws IOException
+  {
+    InputStream is = source.openStream();
+    try
+    {
+      OutputStream os = new FileOutputStream(target);
+      try
+      {
+        Main.copyStream(is, os);
+      }
+      finally
+      {
+        os.close();
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+    return target.length();
+  }
+}
@@ -0,0 +1,251 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Class loader for the jars the launcher extracts (Winstone, and JNA and
+ * Akuma for {@code --daemon}).
+ *
+ * The jars are opened once, up front, and kept open. Their entries are
+ * indexed by directory, so finding a class or resource is one hash lookup to
+ * get the jars that have anything in its package, normally just one, and a
+ * lookup in that jar's central directory. A name that no jar has is rejected
+ * right away instead of after a search of every jar. The loader is parallel
+ * capable, so threads loading unrelated classes don't wait for each other.
+ *
+ * It still is a {@link URLClassLoader} over the same jars, so whatever asks
+ * it for {@link #getURLs()} keeps working.
+ */
+final class IndexedClassLoader
+  extends URLClassLoader
+{
+  static
+  {
+    registerAsParallelCapable();
+  }
+
+  private final JarFile[] jars;
+  private final URL[] urls;
+  private final Manifest[] manifests;
+  /**
+   * Directory of an entry, "" for the root, to the indices of the jars that
+   * have entries there.
+   */
+  private final Map<String, int[]> index = new HashMap<String, int[]>();
+  /**
+   * Packages this loader has defined; {@code getPackage} would do, but it is
+   * deprecated and also looks at the parents.
+   */
+  private final Set<String> packages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  IndexedClassLoader(File[] files, ClassLoader parent)
+    throws IOException
+  {
+    super(toURLs(files), parent);
+    this.urls = getURLs();
+    this.jars = new JarFile[files.length];
+    this.manifests = new Manifest[files.length];
+    Map<String, List<Integer>> dirs = new HashMap<String, List<Integer>>();
+    for (int i = 0; i < files.length; i++)
+    {
+      this.jars[i] = new JarFile(files[i]);
+      this.manifests[i] = this.jars[i].getManifest();
+      for (Enumeration<JarEntry> en = this.jars[i].entries(); en.hasMoreElements();)
+      {
+        String dir = dir(en.nextElement().getName());
+        List<Integer> l = dirs.get(dir);
+        if (l == null)
+        {
+          l = new ArrayList<Integer>(1);
+          dirs.put(dir, l);
+        }
+        if ((l.isEmpty()) || (l.get(l.size() - 1).intValue() != i)) {
+          l.add(Integer.valueOf(i));
+        }
+      }
+    }
+    for (Map.Entry<String, List<Integer>> e : dirs.entrySet())
+    {
+      List<Integer> l = e.getValue();
+      int[] a = new int[l.size()];
+      for (int i = 0; i < a.length; i++) {
+        a[i] = l.get(i).intValue();
+      }
+      this.index.put(e.getKey(), a);
+    }
+  }
+
+  private static URL[] toURLs(File[] files)
+    throws MalformedURLException
+  {
+    URL[] urls = new URL[files.length];
+    for (int i = 0; i < files.length; i++) {
+      urls[i] = files[i].toURI().toURL();
+    }
+    return urls;
+  }
+
+  private static String dir(String name)
+  {
+    if (name.endsWith("/")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    int i = name.lastIndexOf('/');
+    return i < 0 ? "" : name.substring(0, i);
+  }
+
+  protected Class<?> findClass(String name)
+    throws ClassNotFoundException
+  {
+    String path = name.replace('.', '/').concat(".class");
+    int[] candidates = this.index.get(dir(path));
+    if (candidates != null) {
+      for (int i = 0; i < candidates.length; i++)
+      {
+        JarEntry e = this.jars[candidates[i]].getJarEntry(path);
+        if (e != null) {
+          try
+          {
+            return define(name, candidates[i], e);
+          }
+          catch (IOException x)
+          {
+            throw new ClassNotFoundException(name, x);
+          }
+        }
+      }
+    }
+    throw new ClassNotFoundException(name);
+  }
+
+  private Class<?> define(String name, int jar, JarEntry e)
+    throws IOException
+  {
+    byte[] b = read(this.jars[jar], e);
+    int dot = name.lastIndexOf('.');
+    if (dot > 0)
+    {
+      String pkg = name.substring(0, dot);
+      // a package only counts as defined once it is, so that a class of it
+      // loaded in parallel can't get in first and define it without the
+      // manifest's attributes
+      if (!this.packages.contains(pkg)) {
+        synchronized (this.packages)
+        {
+          if (!this.packages.contains(pkg))
+          {
+            try
+            {
+              if (this.manifests[jar] != null) {
+                definePackage(pkg, this.manifests[jar], this.urls[jar]);
+              } else {
+                definePackage(pkg, null, null, null, null, null, null, null);
+              }
+            }
+            catch (IllegalArgumentException x) {}
+            this.packages.add(pkg);
+          }
+        }
+      }
+    }
+    // the signers are only known once the entry has been read
+    return defineClass(name, b, 0, b.length, new CodeSource(this.urls[jar], e.getCodeSigners()));
+  }
+
+  private static byte[] read(JarFile jar, JarEntry e)
+    throws IOException
+  {
+    InputStream in = jar.getInputStream(e);
+    try
+    {
+      int size = (int)e.getSize();
+      if (size >= 0)
+      {
+        byte[] b = new byte[size];
+        int n = 0;
+        while (n < size)
+        {
+          int r = in.read(b, n, size - n);
+          if (r < 0) {
+            throw new IOException("Truncated entry " + e.getName() + " in " + jar.getName());
+          }
+          n += r;
+        }
+        return b;
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Main.copyStream(in, out);
+      return out.toByteArray();
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  public URL findResource(String name)
+  {
+    int[] candidates = this.index.get(dir(name));
+    if (candidates != null) {
+      for (int i = 0; i < candidates.length; i++) {
+        if (this.jars[candidates[i]].getJarEntry(name) != null) {
+          return url(candidates[i], name);
+        }
+      }
+    }
+    return null;
+  }
+
+  public Enumeration<URL> findResources(String name)
+  {
+    List<URL> r = new ArrayList<URL>();
+    int[] candidates = this.index.get(dir(name));
+    if (candidates != null) {
+      for (int i = 0; i < candidates.length; i++) {
+        if (this.jars[candidates[i]].getJarEntry(name) != null)
+        {
+          URL u = url(candidates[i], name);
+          if (u != null) {
+            r.add(u);
+          }
+        }
+      }
+    }
+    return Collections.enumeration(r);
+  }
+
+  private URL url(int jar, String name)
+  {
+    try
+    {
+      return new URL("jar:" + this.urls[jar] + "!/" + name.replace("%", "%25").replace(" ", "%20"));
+    }
+    catch (MalformedURLException e) {}
+    return null;
+  }
+
+  public void close()
+    throws IOException
+  {
+    for (int i = 0; i < this.jars.length; i++) {
+      this.jars[i].close();
+    }
+    super.close();
+  }
+}
@@ -0,0 +1,191 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * What the launcher needs to know about the war, precomputed at build time
+ * into {@link #RESOURCE} so that startup doesn't have to scan every manifest
+ * on the class path for {@code Jenkins-Version} or parse all of
+ * {@code dependencies.txt}.
+ *
+ * The file is a properties file with these keys:
+ * <pre>
+ * version=1.547
+ * dependency.org.kohsuke/akuma=1.9
+ * artifact.akuma=1.9
+ * </pre>
+ * It is generated from the finished war by running this class:
+ * <pre>
+ * java -cp jenkins.war LauncherIndex jenkins.war WEB-INF/launcher-index.properties
+ * jar uf jenkins.war WEB-INF/launcher-index.properties
+ * </pre>
+ * Without the file the launcher scans as it always did. Nothing is recorded
+ * about the entries of the war: their CRCs and sizes, which key the
+ * {@link ExtractionCache}, already come from the zip central directory
+ * without reading them, and an index that went stale would make the cache
+ * reuse an old jar.
+ */
+final class LauncherIndex
+{
+  static final String RESOURCE = "WEB-INF/launcher-index.properties";
+  private static boolean loaded;
+  private static LauncherIndex instance;
+  private final Properties props;
+
+  private LauncherIndex(Properties props)
+  {
+    this.props = props;
+  }
+
+  /**
+   * The index of the war this launcher runs from, or null if the war
+   * doesn't have one.
+   */
+  static synchronized LauncherIndex get()
+  {
+    if (!loaded)
+    {
+      loaded = true;
+      InputStream in = Main.class.getResourceAsStream(RESOURCE);
+      if (in != null) {
+        try
+        {
+          try
+          {
+            Properties p = new Properties();
+            p.load(in);
+            instance = new LauncherIndex(p);
+          }
+          finally
+          {
+            in.close();
+          }
+        }
+        catch (IOException e)
+        {
+          System.err.println("Failed to read " + RESOURCE + ", scanning the war instead: " + e);
+        }
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * The {@code Jenkins-Version} of the war, or null.
+   */
+  String getVersion()
+  {
+    return this.props.getProperty("version");
+  }
+
+  /**
+   * Version of a library bundled in {@code WEB-INF/lib}, falling back to any
+   * library with the same artifactId, or null.
+   */
+  String getDependencyVersion(String groupId, String artifactId)
+  {
+    String v = this.props.getProperty("dependency." + groupId + "/" + artifactId);
+    return v != null ? v : this.props.getProperty("artifact." + artifactId);
+  }
+
+  /**
+   * Writes the index of a war. Keys come out sorted and the file carries no
+   * timestamp, so the same war always gives the same file.
+   */
+  public static void main(String[] args)
+    throws IOException
+  {
+    if (args.length != 2)
+    {
+      System.err.println("Usage: java -cp jenkins.war LauncherIndex WAR OUTPUT");
+      System.exit(1);
+    }
+    Map<String, String> index = new TreeMap<String, String>();
+    ZipFile war = new ZipFile(args[0]);
+    try
+    {
+      ZipEntry mf = war.getEntry("META-INF/MANIFEST.MF");
+      if (mf != null)
+      {
+        InputStream in = war.getInputStream(mf);
+        try
+        {
+          String v = new Manifest(in).getMainAttributes().getValue("Jenkins-Version");
+          if (v != null) {
+            index.put("version", v);
+          }
+        }
+        finally
+        {
+          in.close();
+        }
+      }
+      ZipEntry deps = war.getEntry("WEB-INF/classes/dependencies.txt");
+      if (deps != null)
+      {
+        InputStream in = war.getInputStream(deps);
+        try
+        {
+          Map r = Main.parseDependencyVersions(in);
+          for (Iterator itr = r.entrySet().iterator(); itr.hasNext();)
+          {
+            Map.Entry e = (Map.Entry)itr.next();
+            String key = (String)e.getKey();
+            index.put("dependency." + key.replace(':', '/'), (String)e.getValue());
+            index.put("artifact." + key.substring(key.indexOf(':') + 1), (String)e.getValue());
+          }
+        }
+        finally
+        {
+          in.close();
+        }
+      }
+    }
+    finally
+    {
+      war.close();
+    }
+
+    File out = new File(args[1]);
+    if (out.getParentFile() != null) {
+      out.getParentFile().mkdirs();
+    }
+    Writer w = new OutputStreamWriter(new FileOutputStream(out), "ISO-8859-1");
+    try
+    {
+      for (Iterator itr = index.entrySet().iterator(); itr.hasNext();)
+      {
+        Map.Entry e = (Map.Entry)itr.next();
+        w.write(escape((String)e.getKey()) + "=" + escape((String)e.getValue()) + "\n");
+      }
+    }
+    finally
+    {
+      w.close();
+    }
+  }
+
+  private static String escape(String s)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if ((c == '\\') || (c == '=') || (c == ':') || (c == ' ') || (c == '#') || (c == '!')) {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Sparse index of a {@link LogFileOutputStream} file, kept next to it as
+ * {@code jenkins.log.idx}, so that the output around a point in time can be
+ * found without reading the log up to there.
+ *
+ * The index is a sequence of 16 byte entries, each a big-endian wall-clock
+ * time in milliseconds followed by a big-endian byte offset into the log: the
+ * bytes before the offset were written by that time, the bytes after it no
+ * earlier. An entry is added before a write that starts more than
+ * {@link LogFileSettings#indexBytes} after the last one or more than
+ * {@link LogFileSettings#indexInterval} later, so times and offsets both only
+ * go up, and {@code executable.LogFileIndexReader} looks them up by binary
+ * search. In async mode the times are when the writer thread wrote the bytes,
+ * at most a flush interval after they were logged.
+ *
+ * A segment the log is rolled over to takes the index with it, as
+ * {@code jenkins.log.20140203-235959.idx}. When {@code reopen()} finds a
+ * shorter file than the index knows about, the log was moved away or
+ * truncated by someone else, say on {@code SIGALRM} after an external
+ * rotation: the index is then moved aside under such a timestamped name too,
+ * where it still describes the rotated log, and a new one is started.
+ */
+final class LogFileIndex
+{
+  static final int ENTRY = 16;
+  private final File log;
+  private final File file;
+  private final long bytes;
+  private final long interval;
+  private RandomAccessFile index;
+  private long lastTime;
+  private long lastOffset = -1L;
+  private final byte[] entry = new byte[ENTRY];
+
+  LogFileIndex(File log, LogFileSettings settings, long size)
+    throws IOException
+  {
+    this.log = log;
+    this.file = indexOf(log);
+    this.bytes = settings.indexBytes;
+    this.interval = settings.indexInterval;
+    open(size);
+  }
+
+  static File indexOf(File log)
+  {
+    return new File(log.getPath() + ".idx");
+  }
+
+  /**
+   * Opens the index, keeping the entries already there as long as they fit
+   * the log, and adds one for where the log is now.
+   */
+  private void open(long size)
+    throws IOException
+  {
+    this.index = new RandomAccessFile(this.file, "rw");
+    long len = this.index.length() / ENTRY * ENTRY;
+    this.lastOffset = -1L;
+    if (len > 0L)
+    {
+      this.index.seek(len - ENTRY);
+      long time = this.index.readLong();
+      long offset = this.index.readLong();
+      if (offset <= size)
+      {
+        this.lastTime = time;
+        this.lastOffset = offset;
+      }
+      else
+      {
+        len = 0L;
+      }
+    }
+    // drops a torn last entry, or all of them
+    this.index.setLength(len);
+    this.index.seek(len);
+    add(System.currentTimeMillis(), size);
+  }
+
+  /**
+   * Called with the lock of the stream held, before bytes are written at
+   * the given offset.
+   */
+  void beforeWrite(long offset)
+    throws IOException
+  {
+    long now = System.currentTimeMillis();
+    if ((offset - this.lastOffset >= this.bytes) || (now - this.lastTime >= this.interval)) {
+      add(now, offset);
+    }
+  }
+
+  private void add(long time, long offset)
+    throws IOException
+  {
+    if (offset == this.lastOffset) {
+      return;
+    }
+    // the clock may step back, the index must not
+    time = Math.max(time, this.lastTime);
+    for (int i = 0; i < 8; i++)
+    {
+      this.entry[i] = ((byte)(int)(time >>> 56 - 8 * i));
+      this.entry[(8 + i)] = ((byte)(int)(offset >>> 56 - 8 * i));
+    }
+    this.index.write(this.entry);
+    this.lastTime = time;
+    this.lastOffset = offset;
+  }
+
+  /**
+   * The log was reopened and now has the given size.
+   */
+  void reopened(long size)
+    throws IOException
+  {
+    this.index.close();
+    if (this.lastOffset > size)
+    {
+      // System.err may well be this log, whose lock is held here
+      this.file.renameTo(indexOf(LogRotation.nextSegment(this.log)));
+    }
+    open(size);
+  }
+
+  /**
+   * The log was renamed to a segment and an empty one started: the index
+   * follows it, and a new one is started too.
+   */
+  void rotated(File segment)
+    throws IOException
+  {
+    this.index.close();
+    File target = indexOf(segment);
+    if (!this.file.renameTo(target)) {
+      this.file.delete();
+    }
+    open(0L);
+  }
+
+  void close()
+    throws IOException
+  {
+    this.index.close();
+  }
+}
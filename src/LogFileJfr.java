@@ -0,0 +1,108 @@
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Emits the {@code jenkins.launcher.LogFileSlowWrite} and
+ * {@code jenkins.launcher.LogFileReopen} JFR events.
+ *
+ * The launcher is built for Java 7, which has no {@code jdk.jfr}, so the event
+ * types are defined at run time with {@code jdk.jfr.EventFactory}, all through
+ * reflection; this class is only used once {@link #create()} has found that
+ * API. Events are only created for slow writes and reopens, which are rare,
+ * and JFR drops them cheaply when it isn't recording.
+ */
+final class LogFileJfr
+{
+  private final Object slowWrite;
+  private final Object reopen;
+  private final Method newEvent;
+  private final Method set;
+  private final Method commit;
+
+  private LogFileJfr()
+    throws Exception
+  {
+    Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+    Class<?> event = Class.forName("jdk.jfr.Event");
+    Method create = factory.getMethod("create", new Class[] { List.class, List.class });
+    this.slowWrite = create.invoke(null, new Object[] { type("jenkins.launcher.LogFileSlowWrite", "Slow Log File Write", "A write to the --logfile file that took 1 ms or more"), Arrays.asList(new Object[] { field(File.class, "file", "File", null), field(Integer.TYPE, "bytes", "Bytes", null), field(Long.TYPE, "lockWait", "Lock Wait", "NANOSECONDS"), field(Long.TYPE, "writeTime", "Write Time", "NANOSECONDS") }) });
+    this.reopen = create.invoke(null, new Object[] { type("jenkins.launcher.LogFileReopen", "Log File Reopen", "The --logfile file was closed and opened again"), Arrays.asList(new Object[] { field(File.class, "file", "File", null), field(Long.TYPE, "reopenTime", "Reopen Time", "NANOSECONDS") }) });
+    this.newEvent = factory.getMethod("newEvent", new Class[0]);
+    this.set = event.getMethod("set", new Class[] { Integer.TYPE, Object.class });
+    this.commit = event.getMethod("commit", new Class[0]);
+  }
+
+  /**
+   * Null where the JVM has no JFR.
+   */
+  static LogFileJfr create()
+  {
+    try
+    {
+      return new LogFileJfr();
+    }
+    catch (Throwable t) {}
+    return null;
+  }
+
+  private static List<Object> type(String name, String label, String description)
+    throws Exception
+  {
+    List<Object> r = new ArrayList<Object>();
+    r.add(annotation("jdk.jfr.Name", name));
+    r.add(annotation("jdk.jfr.Label", label));
+    r.add(annotation("jdk.jfr.Description", description));
+    r.add(annotation("jdk.jfr.Category", new String[] { "Jenkins", "Launcher" }));
+    r.add(annotation("jdk.jfr.StackTrace", Boolean.FALSE));
+    return r;
+  }
+
+  /**
+   * A field; File fields hold the path, as a String.
+   */
+  private static Object field(Class<?> type, String name, String label, String timespan)
+    throws Exception
+  {
+    List<Object> annotations = new ArrayList<Object>();
+    annotations.add(annotation("jdk.jfr.Label", label));
+    if (timespan != null) {
+      annotations.add(annotation("jdk.jfr.Timespan", timespan));
+    }
+    Constructor<?> c = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(new Class[] { Class.class, String.class, List.class });
+    return c.newInstance(new Object[] { type == File.class ? String.class : type, name, annotations });
+  }
+
+  private static Object annotation(String type, Object value)
+    throws Exception
+  {
+    Constructor<?> c = Class.forName("jdk.jfr.AnnotationElement").getConstructor(new Class[] { Class.class, Object.class });
+    return c.newInstance(new Object[] { Class.forName(type), value });
+  }
+
+  void slowWrite(File f, int bytes, long lockWait, long writeTime)
+  {
+    emit(this.slowWrite, new Object[] { f.getPath(), Integer.valueOf(bytes), Long.valueOf(lockWait), Long.valueOf(writeTime) });
+  }
+
+  void reopen(File f, long reopenTime)
+  {
+    emit(this.reopen, new Object[] { f.getPath(), Long.valueOf(reopenTime) });
+  }
+
+  private void emit(Object factory, Object[] values)
+  {
+    try
+    {
+      Object e = this.newEvent.invoke(factory, new Object[0]);
+      for (int i = 0; i < values.length; i++) {
+        this.set.invoke(e, new Object[] { Integer.valueOf(i), values[i] });
+      }
+      this.commit.invoke(e, new Object[0]);
+    }
+    catch (Exception x) {}
+  }
+}
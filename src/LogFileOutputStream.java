@@ -1,9 +1,9 @@
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
 
@@ -11,13 +11,96 @@ final class LogFileOutputStream
   extends FilterOutputStream
 {
   private final File file;
-  
+  /**
+   * Whether the file is appended to through {@link MappedFileOutputStream}.
+   * Cleared once, by {@link #unmap()}.
+   */
+  private volatile boolean mapped;
+  /**
+   * In async mode, where the writes go before the writer thread puts them
+   * into the file. Null when writing synchronously.
+   */
+  private final AsyncLogBuffer buffer;
+  /**
+   * Null unless the file is rolled over by size or by date.
+   */
+  private final LogRotation rotation;
+  /**
+   * Null unless {@code --logfileIndex} asked for one.
+   */
+  private final LogFileIndex index;
+  /**
+   * Null unless {@code --logfileRecent} asked for the recent output to be
+   * kept in memory.
+   */
+  private final RecentOutput recent;
+  private final AtomicBoolean rotating = new AtomicBoolean();
+  /**
+   * Size of the current log file. Only changed while holding the lock.
+   */
+  private volatile long size;
+  private final LoggingStats stats;
+
   LogFileOutputStream(File file)
-    throws FileNotFoundException
+    throws IOException
+  {
+    this(file, new LogFileSettings());
+  }
+
+  LogFileOutputStream(File file, LogFileSettings settings)
+    throws IOException
   {
     super(null);
     this.file = file;
-    this.out = new FileOutputStream(file, true);
+    this.mapped = settings.mapped;
+    this.out = open();
+    this.size = length(this.out);
+    this.stats = LoggingStats.attach(this);
+    this.index = settings.index ? new LogFileIndex(file, settings, this.size) : null;
+    if (settings.recentSize > 0)
+    {
+      this.recent = new RecentOutput(settings.recentSize);
+      this.recent.register();
+      if (settings.recentPort > 0) {
+        this.recent.listen(settings.recentPort, new File(file.getPath() + ".recent-token"));
+      }
+    }
+    else
+    {
+      this.recent = null;
+    }
+    this.rotation = settings.rotates() ? new LogRotation(file, settings) : null;
+    if (settings.async) {
+      this.buffer = new AsyncLogBuffer(new AsyncLogBuffer.Sink()
+      {
+        public void write(byte[] b, int off, int len)
+          throws IOException
+        {
+          LogFileOutputStream.this.writeThrough(b, off, len);
+        }
+
+        public void flush()
+          throws IOException
+        {
+          LogFileOutputStream.this.flushFile();
+        }
+      }, settings.bufferSize, settings.flushInterval, settings.dropWhenFull);
+    } else {
+      this.buffer = null;
+    }
+    if (this.mapped) {
+      Runtime.getRuntime().addShutdownHook(new Thread("Log file unmap")
+      {
+        public void run()
+        {
+          try
+          {
+            LogFileOutputStream.this.unmap();
+          }
+          catch (IOException e) {}
+        }
+      });
+    }
     if (File.pathSeparatorChar == ':') {
       Signal.handle(new Signal("ALRM"), new SignalHandler()
       {
@@ -35,56 +118,241 @@ final class LogFileOutputStream
       });
     }
   }
-  
+
+  /**
+   * Closes and reopens the log file. In async mode the output still in the
+   * buffer simply lands in the new file, since the writer thread holds the
+   * same lock while it writes. In mapped mode, closing truncates the old file
+   * (wherever it was moved to) after the last byte written through the map.
+   */
   public synchronized void reopen()
     throws IOException
   {
+    long start = System.nanoTime();
     this.out.close();
     this.out = NULL;
-    this.out = new FileOutputStream(this.file, true);
+    this.out = open();
+    this.size = length(this.out);
+    if (this.index != null) {
+      this.index.reopened(this.size);
+    }
+    this.stats.reopened(this.file, System.nanoTime() - start);
   }
-  
-  public synchronized void write(byte[] b)
+
+  /**
+   * Closes the mapped file, which truncates its padding, and appends whatever
+   * is still logged while the JVM shuts down with plain writes. Nobody
+   * closes this stream on an ordinary exit, so this runs from a shutdown hook.
+   */
+  synchronized void unmap()
     throws IOException
   {
-    this.out.write(b);
+    this.mapped = false;
+    if (this.out instanceof MappedFileOutputStream)
+    {
+      this.out.close();
+      this.out = NULL;
+      this.out = open();
+    }
   }
-  
-  public synchronized void write(byte[] b, int off, int len)
+
+  private OutputStream open()
     throws IOException
   {
-    this.out.write(b, off, len);
+    return this.mapped ? new MappedFileOutputStream(this.file) : new FileOutputStream(this.file, true);
+  }
+
+  private long length(OutputStream os)
+  {
+    return (os instanceof MappedFileOutputStream) ? ((MappedFileOutputStream)os).position() : this.file.length();
   }
-  
-  public synchronized void flush()
+
+  /**
+   * Retires the current log file to a new segment and starts an empty one.
+   *
+   * The file is renamed while still open, so writers carry on into the
+   * segment through the old descriptor while the new file is opened; the
+   * lock every write takes is only held to switch streams. Where an open file
+   * can't be renamed (Windows), the switch falls back to closing, renaming and
+   * reopening under the lock.
+   */
+  private void rotate()
     throws IOException
   {
-    this.out.flush();
+    if (!this.rotating.compareAndSet(false, true)) {
+      return;
+    }
+    try
+    {
+      File segment = this.rotation.nextSegment();
+      if (this.file.renameTo(segment))
+      {
+        OutputStream next = open();
+        OutputStream old;
+        synchronized (this)
+        {
+          old = this.out;
+          this.out = next;
+          this.size = 0L;
+          if (this.index != null) {
+            this.index.rotated(segment);
+          }
+        }
+        old.close();
+        if (!this.mapped) {
+          // the shutdown hook ran while the next file was opened mapped
+          unmap();
+        }
+      }
+      else
+      {
+        synchronized (this)
+        {
+          this.out.close();
+          this.out = NULL;
+          boolean renamed = this.file.renameTo(segment);
+          this.out = open();
+          this.size = length(this.out);
+          if (!renamed)
+          {
+            this.rotation.failed();
+            return;
+          }
+          if (this.index != null) {
+            this.index.rotated(segment);
+          }
+        }
+      }
+      this.rotation.retire(segment);
+    }
+    finally
+    {
+      this.rotating.set(false);
+    }
+  }
+
+  /**
+   * Size of the current log file.
+   */
+  long size()
+  {
+    return this.size;
+  }
+
+  /**
+   * Bytes of output thrown away in async mode because the buffer was full.
+   */
+  public long getDroppedBytes()
+  {
+    return this.buffer == null ? 0L : this.buffer.getDroppedBytes();
   }
-  
-  public synchronized void close()
+
+  public void write(byte[] b)
     throws IOException
   {
-    this.out.close();
+    write(b, 0, b.length);
+  }
+
+  public void write(byte[] b, int off, int len)
+    throws IOException
+  {
+    if (this.buffer != null) {
+      this.buffer.put(b, off, len);
+    } else {
+      writeThrough(b, off, len);
+    }
+  }
+
+  public void flush()
+    throws IOException
+  {
+    if (this.buffer != null) {
+      this.buffer.flush();
+    } else {
+      flushFile();
+    }
+  }
+
+  public void close()
+    throws IOException
+  {
+    if (this.buffer != null) {
+      this.buffer.stop();
+    }
+    synchronized (this)
+    {
+      this.out.close();
+      if (this.index != null) {
+        this.index.close();
+      }
+    }
+  }
+
+  public void write(int b)
+    throws IOException
+  {
+    if (this.buffer != null) {
+      this.buffer.put(new byte[] { (byte)b }, 0, 1);
+    } else {
+      writeThrough(new byte[] { (byte)b }, 0, 1);
+    }
   }
-  
-  public synchronized void write(int b)
+
+  /**
+   * Writes to the file, then rolls it over if that made it due, outside of
+   * the lock.
+   */
+  private void writeThrough(byte[] b, int off, int len)
     throws IOException
   {
-    this.out.write(b);
+    writeToFile(b, off, len);
+    if ((this.rotation != null) && (this.rotation.isDue(this.size))) {
+      rotate();
+    }
   }
-  
+
+  private void writeToFile(byte[] b, int off, int len)
+    throws IOException
+  {
+    long start = System.nanoTime();
+    long acquired;
+    long done;
+    synchronized (this)
+    {
+      acquired = System.nanoTime();
+      if (this.index != null) {
+        this.index.beforeWrite(this.size);
+      }
+      this.out.write(b, off, len);
+      this.size += len;
+      if (this.recent != null) {
+        this.recent.write(b, off, len);
+      }
+      done = System.nanoTime();
+      this.stats.wrote(len, acquired - start, done - acquired);
+    }
+    if (done - start >= LoggingStats.SLOW) {
+      this.stats.slowWrite(this.file, len, acquired - start, done - acquired);
+    }
+  }
+
+  private synchronized void flushFile()
+    throws IOException
+  {
+    this.out.flush();
+  }
+
   public String toString()
   {
     return getClass().getName() + " -> " + this.file;
   }
-  
+
   private static final OutputStream NULL = new OutputStream()
   {
     public void write(int b)
       throws IOException
     {}
-    
+
     public void write(byte[] b, int off, int len)
       throws IOException
     {}
@@ -0,0 +1,185 @@
+/**
+ * The {@code --logfile*} options that tune how {@link LogFileOutputStream}
+ * writes, beyond the {@code --logfile=} location itself.
+ *
+ * All of them share the {@code --logfile} prefix, so
+ * {@code Main.trimOffOurOptions} keeps them away from Winstone.
+ */
+final class LogFileSettings
+{
+  /**
+   * Hand writes over to a background thread instead of writing the file on
+   * the calling thread.
+   */
+  boolean async;
+  /**
+   * Capacity of the in-memory buffer in async mode, in bytes.
+   */
+  int bufferSize = 1048576;
+  /**
+   * How long the background writer lets output accumulate before writing it
+   * out, in milliseconds.
+   */
+  long flushInterval = 200L;
+  /**
+   * In async mode, whether writes that don't fit in a full buffer are
+   * dropped (and counted) rather than blocking the caller.
+   */
+  boolean dropWhenFull;
+  /**
+   * Append through a memory-mapped window instead of write calls.
+   */
+  boolean mapped;
+  /**
+   * Size in bytes at which the log file is rolled over, or 0 for no limit.
+   */
+  long maxSize;
+  /**
+   * Whether the log file is also rolled over at midnight.
+   */
+  boolean dailyRollover;
+  /**
+   * How many rolled over segments to keep, or 0 to keep them all.
+   */
+  int retention;
+  /**
+   * Whether a {@link LogFileIndex} is kept next to the log file.
+   */
+  boolean index;
+  /**
+   * Most bytes of output between two index entries.
+   */
+  long indexBytes = 65536L;
+  /**
+   * Most milliseconds between two index entries while output is written.
+   */
+  long indexInterval = 10000L;
+  /**
+   * Bytes of recent output kept in memory by {@link RecentOutput}, or 0.
+   */
+  int recentSize;
+  /**
+   * Loopback port {@link RecentOutput} serves the recent output on, or 0.
+   */
+  int recentPort;
+
+  boolean rotates()
+  {
+    return (this.maxSize > 0L) || (this.dailyRollover);
+  }
+
+  static LogFileSettings parse(String[] args)
+  {
+    LogFileSettings s = new LogFileSettings();
+    for (int i = 0; i < args.length; i++)
+    {
+      String a = args[i];
+      if (a.equals("--logfileAsync")) {
+        s.async = true;
+      } else if (a.startsWith("--logfileBufferSize="))
+      {
+        s.async = true;
+        s.bufferSize = (int)Math.min(1073741824L, number(a, s.bufferSize));
+      }
+      else if (a.startsWith("--logfileFlushInterval="))
+      {
+        s.flushInterval = number(a, s.flushInterval);
+      }
+      else if (a.equals("--logfileMapped"))
+      {
+        s.mapped = true;
+      }
+      else if (a.startsWith("--logfileMaxSize="))
+      {
+        s.maxSize = number(a, s.maxSize);
+      }
+      else if (a.equals("--logfileDailyRollover"))
+      {
+        s.dailyRollover = true;
+      }
+      else if (a.startsWith("--logfileRetention="))
+      {
+        s.retention = (int)number(a, s.retention);
+      }
+      else if (a.equals("--logfileIndex"))
+      {
+        s.index = true;
+      }
+      else if (a.startsWith("--logfileIndexBytes="))
+      {
+        s.index = true;
+        s.indexBytes = number(a, s.indexBytes);
+      }
+      else if (a.startsWith("--logfileIndexInterval="))
+      {
+        s.index = true;
+        s.indexInterval = number(a, s.indexInterval);
+      }
+      else if (a.startsWith("--logfileRecent="))
+      {
+        s.recentSize = (int)Math.min(1073741824L, number(a, s.recentSize));
+      }
+      else if (a.startsWith("--logfileRecentPort="))
+      {
+        long port = number(a, -1L);
+        if (port > 65535L)
+        {
+          System.err.println("The logfileRecentPort value is not a port number. Ignoring.");
+        }
+        else if (port > 0L)
+        {
+          s.recentPort = (int)port;
+          if (s.recentSize == 0) {
+            s.recentSize = 4194304;
+          }
+        }
+      }
+      else if (a.startsWith("--logfileOverflow="))
+      {
+        String v = value(a);
+        if (v.equals("drop")) {
+          s.dropWhenFull = true;
+        } else if (v.equals("block")) {
+          s.dropWhenFull = false;
+        } else {
+          System.err.println("The logfileOverflow value is neither block nor drop. Ignoring.");
+        }
+      }
+    }
+    return s;
+  }
+
+  private static String value(String arg)
+  {
+    return arg.substring(arg.indexOf('=') + 1);
+  }
+
+  /**
+   * Parses a positive number, with an optional k/m/g suffix.
+   */
+  static long number(String arg, long fallback)
+  {
+    String v = value(arg).trim().toLowerCase();
+    long unit = 1L;
+    if (v.endsWith("k")) {
+      unit = 1024L;
+    } else if (v.endsWith("m")) {
+      unit = 1048576L;
+    } else if (v.endsWith("g")) {
+      unit = 1073741824L;
+    }
+    if (unit != 1L) {
+      v = v.substring(0, v.length() - 1);
+    }
+    try
+    {
+      long n = Long.parseLong(v) * unit;
+      if (n > 0L) {
+        return n;
+      }
+    }
+    catch (NumberFormatException e) {}
+    System.err.println("The " + arg.substring(2, arg.indexOf('=')) + " value is not a positive number. Ignoring.");
+    return fallback;
+  }
+}
@@ -0,0 +1,218 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * When {@link LogFileOutputStream} should roll its file over, what the
+ * retired segments are called, and the background thread that compresses and
+ * prunes them.
+ *
+ * A segment of {@code jenkins.log} is named after the time it was retired, as
+ * in {@code jenkins.log.20140203-235959.gz}. Compression keeps the
+ * modification time of the segment, which is what retention goes by. A
+ * segment's {@link LogFileIndex}, named after it without {@code .gz}, is
+ * deleted along with it.
+ */
+final class LogRotation
+{
+  private final File file;
+  private final long maxSize;
+  private final boolean daily;
+  private final int retention;
+  private final Pattern segments;
+  private volatile long nextRollover = Long.MAX_VALUE;
+  /**
+   * After a failed roll over, when to try again.
+   */
+  private volatile long notBefore;
+  private final ExecutorService compressor = Executors.newSingleThreadExecutor(new ThreadFactory()
+  {
+    public Thread newThread(Runnable r)
+    {
+      Thread t = new Thread(r, "Log file compressor");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  LogRotation(File file, LogFileSettings settings)
+  {
+    this.file = file;
+    this.maxSize = settings.maxSize;
+    this.daily = settings.dailyRollover;
+    this.retention = settings.retention;
+    this.segments = Pattern.compile(Pattern.quote(file.getName()) + "\\.[0-9]{8}-[0-9]{6}(-[0-9]+)?(\\.gz)?");
+    scheduleNextRollover();
+
+    // segments left uncompressed by a JVM that went away too early
+    File[] leftovers = list();
+    for (int i = 0; i < leftovers.length; i++) {
+      if (!leftovers[i].getName().endsWith(".gz")) {
+        retire(leftovers[i]);
+      }
+    }
+  }
+
+  /**
+   * Cheap enough to be asked after every write.
+   */
+  boolean isDue(long size)
+  {
+    long now = System.currentTimeMillis();
+    return (now >= this.notBefore) && (((this.maxSize > 0L) && (size >= this.maxSize)) || (now >= this.nextRollover));
+  }
+
+  /**
+   * The current file couldn't be renamed; leave it alone for a minute rather
+   * than retrying on every write.
+   */
+  void failed()
+  {
+    this.notBefore = System.currentTimeMillis() + 60000L;
+  }
+
+  /**
+   * A name, not taken yet, to retire the current file to.
+   */
+  File nextSegment()
+  {
+    return nextSegment(this.file);
+  }
+
+  /**
+   * The log file's name with the current time appended, and a counter if
+   * that is taken by a segment or by its index.
+   */
+  static File nextSegment(File file)
+  {
+    String base = file.getName() + "." + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    File dir = file.getAbsoluteFile().getParentFile();
+    File f = new File(dir, base);
+    for (int i = 1; (f.exists()) || (new File(dir, f.getName() + ".gz").exists()) || (LogFileIndex.indexOf(f).exists()); i++) {
+      f = new File(dir, base + "-" + i);
+    }
+    return f;
+  }
+
+  /**
+   * Hands a segment that nobody writes to any more over to the background
+   * thread, which compresses it and deletes the segments beyond the
+   * retention count.
+   */
+  void retire(final File segment)
+  {
+    scheduleNextRollover();
+    this.compressor.execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          LogRotation.compress(segment);
+        }
+        catch (IOException e)
+        {
+          System.err.println("Failed to compress " + segment + ": " + e);
+        }
+        LogRotation.this.prune();
+      }
+    });
+  }
+
+  private void scheduleNextRollover()
+  {
+    if (!this.daily) {
+      return;
+    }
+    Calendar c = Calendar.getInstance();
+    c.set(Calendar.HOUR_OF_DAY, 0);
+    c.set(Calendar.MINUTE, 0);
+    c.set(Calendar.SECOND, 0);
+    c.set(Calendar.MILLISECOND, 0);
+    c.add(Calendar.DAY_OF_MONTH, 1);
+    this.nextRollover = c.getTimeInMillis();
+  }
+
+  private static void compress(File segment)
+    throws IOException
+  {
+    if (!segment.exists()) {
+      return;
+    }
+    File gz = new File(segment.getPath() + ".gz");
+    InputStream in = new FileInputStream(segment);
+    try
+    {
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(gz), 65536);
+      try
+      {
+        Main.copyStream(in, out);
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    catch (IOException e)
+    {
+      gz.delete();
+      throw e;
+    }
+    finally
+    {
+      in.close();
+    }
+    gz.setLastModified(segment.lastModified());
+    segment.delete();
+  }
+
+  private void prune()
+  {
+    if (this.retention <= 0) {
+      return;
+    }
+    File[] all = list();
+    Arrays.sort(all, new Comparator<File>()
+    {
+      public int compare(File a, File b)
+      {
+        long d = a.lastModified() - b.lastModified();
+        return d < 0L ? -1 : d > 0L ? 1 : a.getName().compareTo(b.getName());
+      }
+    });
+    for (int i = 0; i < all.length - this.retention; i++)
+    {
+      all[i].delete();
+      String n = all[i].getPath();
+      LogFileIndex.indexOf(new File(n.endsWith(".gz") ? n.substring(0, n.length() - 3) : n)).delete();
+    }
+  }
+
+  private File[] list()
+  {
+    File[] all = this.file.getAbsoluteFile().getParentFile().listFiles();
+    if (all == null) {
+      return new File[0];
+    }
+    int n = 0;
+    for (int i = 0; i < all.length; i++) {
+      if (this.segments.matcher(all[i].getName()).matches()) {
+        all[(n++)] = all[i];
+      }
+    }
+    return Arrays.copyOf(all, n);
+  }
+}
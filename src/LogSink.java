@@ -0,0 +1,637 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import java.util.zip.CRC32;
+
+/**
+ * {@code --logsink=}: ships {@code System.out}, {@code System.err} and the
+ * records of the root logger to a collector over TCP, in addition to where
+ * they go anyway.
+ *
+ * With {@code tcp://host:port} every record is a line of text preceded by its
+ * length as a 4 byte big-endian number. With {@code syslog://host:port} it is
+ * an RFC 5424 message framed by octet counting, as RFC 6587 has it for syslog
+ * over TCP. Each line written to {@code System.out} or {@code System.err} is
+ * a record of its own, and so is each log record, stack trace included.
+ *
+ * The threads that log only encode their record and queue it; when the queue
+ * is full the record is dropped and counted rather than holding them up. One
+ * background thread takes everything queued, batches it into a buffer and
+ * writes that to a non-blocking {@link SocketChannel}. When the collector
+ * can't be reached, or stops taking data for {@link #WRITE_TIMEOUT}, the
+ * thread reconnects after a delay that starts at 100 ms and doubles up to 30
+ * seconds, and meanwhile appends the records to a spill file, up to
+ * {@code --logsinkSpillSize} (default 64m), beyond which they are dropped.
+ * Once connected again, and on the next start if it comes to that, the spill
+ * file is sent before anything newer. Its default name includes a hash of
+ * {@code JENKINS_HOME}, so that instances on one host that ship to the same
+ * collector each keep their own. At shutdown, records that can't be sent
+ * right away are spilled without trying to reach the collector again.
+ *
+ * Only TCP is supported: Unix domain sockets need a later Java than the
+ * launcher's.
+ */
+final class LogSink
+{
+  private static final int QUEUE_SIZE = 10000;
+  private static final int BATCH_SIZE = 262144;
+  private static final long WRITE_TIMEOUT = 10000L;
+  private static final long MIN_BACKOFF = 100L;
+  private static final long MAX_BACKOFF = 30000L;
+  private final String host;
+  private final int port;
+  private final boolean syslog;
+  private final File spill;
+  private final long spillSize;
+  private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+  private final AtomicLong dropped = new AtomicLong();
+  private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+  private final String hostName;
+  private final String pid;
+  private final SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+  private final Thread sender;
+  private volatile boolean stopping;
+  private SocketChannel channel;
+  private Selector selector;
+  /**
+   * The selector a connection attempt waits on, for {@link #stop()} to
+   * wake up.
+   */
+  private volatile Selector connecting;
+  private long backoff = MIN_BACKOFF;
+  private long nextAttempt;
+  private boolean spilled;
+
+  LogSink(String spec, String[] args)
+    throws URISyntaxException
+  {
+    URI uri = new URI(spec);
+    if ((uri.getHost() == null) || (uri.getPort() < 0) || ((!"tcp".equals(uri.getScheme())) && (!"syslog".equals(uri.getScheme())))) {
+      throw new URISyntaxException(spec, "Expected tcp://host:port or syslog://host:port");
+    }
+    this.host = uri.getHost();
+    this.port = uri.getPort();
+    this.syslog = uri.getScheme().equals("syslog");
+    CRC32 home = new CRC32();
+    home.update(Main.getHomeDir().file.getAbsolutePath().getBytes());
+    File spill = new File(System.getProperty("java.io.tmpdir"), "jenkins-logsink-" + this.host + "-" + this.port + "-" + Long.toHexString(home.getValue()) + ".spill");
+    long spillSize = 67108864L;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].startsWith("--logsinkSpill=")) {
+        spill = new File(args[i].substring("--logsinkSpill=".length()));
+      } else if (args[i].startsWith("--logsinkSpillSize=")) {
+        spillSize = LogFileSettings.number(args[i], spillSize);
+      }
+    }
+    this.spill = spill;
+    this.spillSize = spillSize;
+    this.spilled = spill.length() > 0L;
+    String h = "-";
+    try
+    {
+      h = InetAddress.getLocalHost().getHostName();
+    }
+    catch (IOException e) {}
+    this.hostName = h;
+    String name = ManagementFactory.getRuntimeMXBean().getName();
+    this.pid = name.indexOf('@') > 0 ? name.substring(0, name.indexOf('@')) : "-";
+    this.sender = new Thread("Log sink " + spec)
+    {
+      public void run()
+      {
+        LogSink.this.run();
+      }
+    };
+    this.sender.setDaemon(true);
+  }
+
+  /**
+   * Starts shipping {@code System.out}, {@code System.err} and the root
+   * logger to the collector.
+   */
+  static void install(String spec, String[] args)
+  {
+    final LogSink sink;
+    try
+    {
+      sink = new LogSink(spec, args);
+    }
+    catch (URISyntaxException e)
+    {
+      System.err.println("The logsink value is not valid: " + e.getMessage() + ". Ignoring.");
+      return;
+    }
+    // the root console handler keeps writing to the stream it was created
+    // with, so its records aren't sent twice once System.err is replaced
+    Logger root = Logger.getLogger("");
+    root.getHandlers();
+    String encoding = Charset.defaultCharset().name();
+    try
+    {
+      System.setOut(new PrintStream(sink.new Lines(System.out, 6, "stdout", encoding), true, encoding));
+      System.setErr(new PrintStream(sink.new Lines(System.err, 3, "stderr", encoding), true, encoding));
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new AssertionError(e);
+    }
+    root.addHandler(sink.new RootHandler());
+    sink.sender.start();
+    Runtime.getRuntime().addShutdownHook(new Thread("Log sink shutdown")
+    {
+      public void run()
+      {
+        sink.stop();
+      }
+    });
+  }
+
+  /**
+   * Queues a record; called by any thread.
+   */
+  void send(int severity, String tag, String message)
+  {
+    if (!this.queue.offer(frame(severity, tag, message))) {
+      this.dropped.incrementAndGet();
+    }
+  }
+
+  private byte[] frame(int severity, String tag, String message)
+  {
+    try
+    {
+      byte[] payload = encode(severity, tag, message).getBytes("UTF-8");
+      ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 12);
+      if (this.syslog)
+      {
+        frame.write((payload.length + " ").getBytes("US-ASCII"));
+      }
+      else
+      {
+        int n = payload.length;
+        frame.write(n >>> 24);
+        frame.write(n >>> 16);
+        frame.write(n >>> 8);
+        frame.write(n);
+      }
+      frame.write(payload);
+      return frame.toByteArray();
+    }
+    catch (IOException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+
+  private String encode(int severity, String tag, String message)
+  {
+    String time;
+    synchronized (this.timestamp)
+    {
+      time = this.timestamp.format(new Date());
+    }
+    if (this.syslog) {
+      // facility user
+      return "<" + (8 + severity) + ">1 " + time + " " + this.hostName + " jenkins " + this.pid + " " + tag + " - " + message;
+    }
+    return time + " " + tag + " " + message;
+  }
+
+  private void run()
+  {
+    List<byte[]> records = new ArrayList<byte[]>();
+    for (;;)
+    {
+      records.clear();
+      try
+      {
+        byte[] first = this.queue.poll(200L, TimeUnit.MILLISECONDS);
+        if (first != null)
+        {
+          records.add(first);
+          this.queue.drainTo(records);
+        }
+      }
+      catch (InterruptedException e) {}
+      boolean last = (this.stopping) && (this.queue.isEmpty());
+      long lost = this.dropped.getAndSet(0L);
+      if (lost > 0L) {
+        records.add(0, frame(4, "logsink", lost + " records dropped because the collector couldn't keep up"));
+      }
+      deliver(records);
+      if (last) {
+        break;
+      }
+    }
+    close();
+  }
+
+  /**
+   * Sends the records, after what was spilled before, or spills them if the
+   * collector isn't there.
+   */
+  private void deliver(List<byte[]> records)
+  {
+    if ((this.channel == null) && (!this.stopping) && (System.currentTimeMillis() >= this.nextAttempt)) {
+      connect();
+    }
+    if ((this.channel != null) && (this.spilled)) {
+      replay();
+    }
+    if (records.isEmpty()) {
+      return;
+    }
+    int sent = 0;
+    if ((this.channel != null) && (!this.spilled)) {
+      sent = write(records, 0);
+    }
+    if (sent < records.size()) {
+      spill(records, sent);
+    }
+  }
+
+  private void connect()
+  {
+    SocketChannel ch = null;
+    try
+    {
+      ch = SocketChannel.open();
+      ch.configureBlocking(false);
+      Selector sel = Selector.open();
+      try
+      {
+        if (!ch.connect(new InetSocketAddress(this.host, this.port)))
+        {
+          ch.register(sel, SelectionKey.OP_CONNECT);
+          this.connecting = sel;
+          if ((this.stopping) || (sel.select(WRITE_TIMEOUT) == 0) || (!ch.finishConnect())) {
+            throw new IOException("Timed out connecting to " + this.host + ":" + this.port);
+          }
+        }
+        ch.register(sel, SelectionKey.OP_WRITE);
+      }
+      catch (IOException e)
+      {
+        sel.close();
+        throw e;
+      }
+      finally
+      {
+        this.connecting = null;
+      }
+      this.channel = ch;
+      this.selector = sel;
+      this.backoff = MIN_BACKOFF;
+    }
+    catch (IOException e)
+    {
+      if (ch != null) {
+        try
+        {
+          ch.close();
+        }
+        catch (IOException x) {}
+      }
+      this.nextAttempt = System.currentTimeMillis() + this.backoff;
+      this.backoff = Math.min(MAX_BACKOFF, this.backoff * 2L);
+    }
+  }
+
+  /**
+   * Writes records from the given one on in batches and returns the index of
+   * the first one not completely written, which is the size of the list
+   * unless the connection failed.
+   */
+  private int write(List<byte[]> records, int from)
+  {
+    int i = from;
+    try
+    {
+      while (i < records.size())
+      {
+        this.batch.clear();
+        int first = i;
+        while ((i < records.size()) && (records.get(i).length <= this.batch.remaining()))
+        {
+          this.batch.put(records.get(i));
+          i++;
+        }
+        if (i == first)
+        {
+          // bigger than a whole batch
+          writeFully(ByteBuffer.wrap(records.get(i)));
+          i++;
+        }
+        else
+        {
+          this.batch.flip();
+          writeFully(this.batch);
+        }
+        from = i;
+      }
+    }
+    catch (IOException e)
+    {
+      close();
+      this.nextAttempt = System.currentTimeMillis() + this.backoff;
+    }
+    return from;
+  }
+
+  private void writeFully(ByteBuffer b)
+    throws IOException
+  {
+    while (b.hasRemaining()) {
+      if (this.channel.write(b) == 0)
+      {
+        if (this.selector.select(WRITE_TIMEOUT) == 0) {
+          throw new IOException("Timed out writing to " + this.host + ":" + this.port);
+        }
+        this.selector.selectedKeys().clear();
+      }
+    }
+  }
+
+  /**
+   * Appends the records from the given one on to the spill file, each
+   * preceded by its length, as far as it has room.
+   */
+  private void spill(List<byte[]> records, int from)
+  {
+    try
+    {
+      long size = this.spill.length();
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(this.spill, true));
+      try
+      {
+        for (int i = from; i < records.size(); i++)
+        {
+          byte[] r = records.get(i);
+          if (size + 4L + r.length > this.spillSize)
+          {
+            this.dropped.incrementAndGet();
+          }
+          else
+          {
+            out.writeInt(r.length);
+            out.write(r);
+            size += 4L + r.length;
+            this.spilled = true;
+          }
+        }
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    catch (IOException e)
+    {
+      this.dropped.addAndGet(records.size() - from);
+    }
+  }
+
+  /**
+   * Sends the spill file. What couldn't be sent is kept in it.
+   */
+  private void replay()
+  {
+    List<byte[]> records = new ArrayList<byte[]>();
+    try
+    {
+      DataInputStream in = new DataInputStream(new FileInputStream(this.spill));
+      try
+      {
+        for (;;)
+        {
+          long size = 0L;
+          records.clear();
+          try
+          {
+            while (size < BATCH_SIZE)
+            {
+              byte[] r = new byte[in.readInt()];
+              in.readFully(r);
+              records.add(r);
+              size += r.length;
+            }
+          }
+          catch (EOFException e) {}
+          if (records.isEmpty()) {
+            break;
+          }
+          int sent = write(records, 0);
+          if (sent < records.size())
+          {
+            // keep the rest of the file, starting with what wasn't sent
+            File rest = new File(this.spill.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(rest));
+            try
+            {
+              for (int i = sent; i < records.size(); i++)
+              {
+                out.writeInt(records.get(i).length);
+                out.write(records.get(i));
+              }
+              Main.copyStream(in, out);
+            }
+            finally
+            {
+              out.close();
+            }
+            in.close();
+            this.spill.delete();
+            rest.renameTo(this.spill);
+            return;
+          }
+        }
+      }
+      finally
+      {
+        in.close();
+      }
+      this.spill.delete();
+      this.spilled = false;
+    }
+    catch (FileNotFoundException e)
+    {
+      this.spilled = false;
+    }
+    catch (IOException e)
+    {
+      System.err.println("Failed to send the log sink spill file " + this.spill + ": " + e);
+      this.spill.delete();
+      this.spilled = false;
+    }
+  }
+
+  private void close()
+  {
+    try
+    {
+      if (this.channel != null) {
+        this.channel.close();
+      }
+      if (this.selector != null) {
+        this.selector.close();
+      }
+    }
+    catch (IOException e) {}
+    this.channel = null;
+    this.selector = null;
+  }
+
+  /**
+   * Sends what is still queued if the collector is connected, or else spills
+   * it.
+   */
+  void stop()
+  {
+    this.stopping = true;
+    Selector sel = this.connecting;
+    if (sel != null) {
+      sel.wakeup();
+    }
+    try
+    {
+      this.sender.join(WRITE_TIMEOUT);
+    }
+    catch (InterruptedException e) {}
+  }
+
+  /**
+   * Turns what is written to a stream into one record per line, and writes it
+   * to the stream as before. The lines are decoded with the encoding of the
+   * {@link PrintStream} writing to this.
+   */
+  private final class Lines
+    extends OutputStream
+  {
+    private final OutputStream out;
+    private final int severity;
+    private final String tag;
+    private final String encoding;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    Lines(OutputStream out, int severity, String tag, String encoding)
+    {
+      this.out = out;
+      this.severity = severity;
+      this.tag = tag;
+      this.encoding = encoding;
+    }
+
+    public synchronized void write(int b)
+      throws IOException
+    {
+      this.out.write(b);
+      if (b == 10) {
+        emit();
+      } else {
+        this.line.write(b);
+      }
+    }
+
+    public synchronized void write(byte[] b, int off, int len)
+      throws IOException
+    {
+      this.out.write(b, off, len);
+      int start = off;
+      for (int i = off; i < off + len; i++) {
+        if (b[i] == 10)
+        {
+          this.line.write(b, start, i - start);
+          emit();
+          start = i + 1;
+        }
+      }
+      this.line.write(b, start, off + len - start);
+    }
+
+    private void emit()
+      throws UnsupportedEncodingException
+    {
+      String s = this.line.toString(this.encoding);
+      if (s.endsWith("\r")) {
+        s = s.substring(0, s.length() - 1);
+      }
+      this.line.reset();
+      LogSink.this.send(this.severity, this.tag, s);
+    }
+
+    public void flush()
+      throws IOException
+    {
+      this.out.flush();
+    }
+  }
+
+  /**
+   * Sends the records of the root logger.
+   */
+  private final class RootHandler
+    extends Handler
+  {
+    private final Formatter formatter = new SimpleFormatter();
+
+    public void publish(LogRecord record)
+    {
+      if (!isLoggable(record)) {
+        return;
+      }
+      int v = record.getLevel().intValue();
+      int severity = v >= Level.SEVERE.intValue() ? 3 : v >= Level.WARNING.intValue() ? 4 : v >= Level.INFO.intValue() ? 6 : 7;
+      StringBuilder sb = new StringBuilder();
+      sb.append(record.getLevel().getName()).append(' ').append(record.getLoggerName()).append(": ").append(this.formatter.formatMessage(record));
+      if (record.getThrown() != null)
+      {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        pw.println();
+        record.getThrown().printStackTrace(pw);
+        pw.close();
+        sb.append(sw.getBuffer());
+      }
+      LogSink.this.send(severity, "log", sb.toString());
+    }
+
+    public void flush() {}
+
+    public void close() {}
+  }
+}
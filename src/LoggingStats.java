@@ -0,0 +1,165 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+/**
+ * How much the launcher's logging costs the threads that log: the writes of
+ * {@link LogFileOutputStream} and the formatting of {@link ColorFormatter}.
+ *
+ * The file counters are only updated by the thread holding the lock of the
+ * stream, which it takes anyway, so they are plain fields and a write costs
+ * three clock reads and a few additions; readers may see them a write apart,
+ * or stale. In async mode they describe the writer thread. The formatter runs
+ * on any thread and counts with static atomics, so formatting needs no
+ * instance.
+ *
+ * The instance only exists once {@code --logfile} opens its stream, which is
+ * when it is registered as an MBean and, through {@link LogFileJfr}, writes
+ * that take more than {@link #SLOW} and every reopen start being reported as
+ * JFR events, when the JVM has JFR. Without it nothing starts the platform
+ * MBean server or defines the events.
+ */
+final class LoggingStats
+  implements LoggingStatsMBean
+{
+  static final long SLOW = 1000000L;
+  private static final int BUCKETS = 22;
+  private static final AtomicLong FORMATTED_RECORDS = new AtomicLong();
+  private static final AtomicLong FORMAT_NANOS = new AtomicLong();
+  private static LoggingStats instance;
+  private long writtenBytes;
+  private long writes;
+  private long contentionNanos;
+  private final long[] histogram = new long[BUCKETS];
+  private long reopens;
+  private long reopenNanos;
+  private volatile LogFileOutputStream file;
+  private volatile LogFileJfr jfr;
+
+  /**
+   * Starting the platform MBean server and defining the JFR events takes
+   * a while, so that happens on a thread of its own rather than on the first
+   * thread that logs.
+   */
+  private void register()
+  {
+    Thread t = new Thread("Logging statistics registration")
+    {
+      public void run()
+      {
+        LoggingStats.this.jfr = LogFileJfr.create();
+        try
+        {
+          ManagementFactory.getPlatformMBeanServer().registerMBean(LoggingStats.this, new ObjectName("jenkins.launcher:type=Logging"));
+        }
+        catch (Exception e) {}
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * The statistics of the log file stream, registered the first time.
+   */
+  static synchronized LoggingStats attach(LogFileOutputStream file)
+  {
+    if (instance == null)
+    {
+      instance = new LoggingStats();
+      instance.register();
+    }
+    instance.file = file;
+    return instance;
+  }
+
+  /**
+   * Called with the lock of the stream held.
+   */
+  void wrote(int len, long waitNanos, long writeNanos)
+  {
+    this.writtenBytes += len;
+    this.writes += 1L;
+    this.contentionNanos += waitNanos;
+    long us = (waitNanos + writeNanos) / 1000L;
+    int bucket = us == 0L ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+    this.histogram[bucket] += 1L;
+  }
+
+  /**
+   * Called after a write that took {@link #SLOW} or more, without the lock.
+   */
+  void slowWrite(File f, int len, long waitNanos, long writeNanos)
+  {
+    LogFileJfr j = this.jfr;
+    if (j != null) {
+      j.slowWrite(f, len, waitNanos, writeNanos);
+    }
+  }
+
+  /**
+   * Called with the lock of the stream held.
+   */
+  void reopened(File f, long nanos)
+  {
+    this.reopens += 1L;
+    this.reopenNanos += nanos;
+    LogFileJfr j = this.jfr;
+    if (j != null) {
+      j.reopen(f, nanos);
+    }
+  }
+
+  static void formatted(long nanos)
+  {
+    FORMATTED_RECORDS.incrementAndGet();
+    FORMAT_NANOS.addAndGet(nanos);
+  }
+
+  public long getWrittenBytes()
+  {
+    return this.writtenBytes;
+  }
+
+  public long getWrites()
+  {
+    return this.writes;
+  }
+
+  public long[] getWriteLatencyHistogram()
+  {
+    return this.histogram.clone();
+  }
+
+  public long getContentionNanos()
+  {
+    return this.contentionNanos;
+  }
+
+  public long getReopens()
+  {
+    return this.reopens;
+  }
+
+  public long getReopenNanos()
+  {
+    return this.reopenNanos;
+  }
+
+  public long getFileSize()
+  {
+    LogFileOutputStream f = this.file;
+    return f == null ? -1L : f.size();
+  }
+
+  public long getFormattedRecords()
+  {
+    return FORMATTED_RECORDS.get();
+  }
+
+  public long getFormatNanos()
+  {
+    return FORMAT_NANOS.get();
+  }
+}
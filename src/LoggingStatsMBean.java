@@ -0,0 +1,50 @@
+/**
+ * Management interface of {@link LoggingStats}, registered as
+ * {@code jenkins.launcher:type=Logging}.
+ */
+public interface LoggingStatsMBean
+{
+  /**
+   * Bytes written to the {@code --logfile} file so far.
+   */
+  long getWrittenBytes();
+
+  /**
+   * Writes to the file so far, each normally a line or a log record.
+   */
+  long getWrites();
+
+  /**
+   * Writes by how long they took including the wait for the lock: the first
+   * count is of writes under 1 microsecond, each next one of writes under
+   * twice as long, the last of those taking a second or more.
+   */
+  long[] getWriteLatencyHistogram();
+
+  /**
+   * Total time writes waited for the lock of the file, in nanoseconds.
+   */
+  long getContentionNanos();
+
+  long getReopens();
+
+  /**
+   * Total time spent reopening the file, in nanoseconds.
+   */
+  long getReopenNanos();
+
+  /**
+   * Current size of the file, or -1 without {@code --logfile}.
+   */
+  long getFileSize();
+
+  /**
+   * Log records {@link ColorFormatter} has formatted for the console.
+   */
+  long getFormattedRecords();
+
+  /**
+   * Total time {@link ColorFormatter} spent formatting them, in nanoseconds.
+   */
+  long getFormatNanos();
+}
@@ -1,84 +1,168 @@
 import java.awt.Dimension;
 import java.awt.HeadlessException;
-import java.io.BufferedReader;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
-import javax.swing.SwingUtilities;
-import javax.swing.text.Caret;
-import javax.swing.text.Document;
-import javax.swing.text.Position;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
 
 class MainDialog
   extends JFrame
 {
+  /**
+   * How often the console picks up new output, in milliseconds.
+   */
+  private static final int REFRESH = 33;
   private final JTextArea textArea = new JTextArea();
-  
+  private final ConsoleBuffer buffer = new ConsoleBuffer(1048576);
+  /**
+   * The console keeps only this many of the most recent lines.
+   */
+  private final int maxLines = Integer.getInteger("hudson.webstart.consoleLines", 10000).intValue();
+
   public MainDialog()
     throws HeadlessException, IOException
   {
     super("Jenkins Console");
-    
+
     JScrollPane pane = new JScrollPane(this.textArea);
     pane.setMinimumSize(new Dimension(400, 150));
     pane.setPreferredSize(new Dimension(400, 150));
     add(pane);
-    
+
     setDefaultCloseOperation(3);
     setLocationByPlatform(true);
-    
-    PipedOutputStream out = new PipedOutputStream();
-    PrintStream pout = new PrintStream(out);
+
+    PrintStream pout = new PrintStream(this.buffer);
     System.setErr(pout);
     System.setOut(pout);
-    
 
-    BufferedReader in = new BufferedReader(new InputStreamReader(new PipedInputStream(out)));
-    new Thread()
+    // one document update per frame, with all the complete lines written
+    // since the last one
+    new Timer(REFRESH, new ActionListener()
     {
-      private final BufferedReader val$in=null;
-      
-      public void run()
+      public void actionPerformed(ActionEvent e)
       {
-        try
-        {
-          for (;;)
-          {
-            String line;
-            if ((line = this.val$in.readLine()) != null)
-            {
-              String text = line;
-              SwingUtilities.invokeLater(new Runnable()
-              {
-                private final String val$text=null;
-                
-                public void run()
-                {
-                  MainDialog.this.textArea.append(this.val$text + '\n');
-                  MainDialog.this.scrollDown();
-                }
-              });
-            }
-          }
-        }
-        catch (IOException e)
-        {
-          throw new Error(e);
+        String text = MainDialog.this.buffer.takeLines();
+        if (text != null) {
+          MainDialog.this.append(text);
         }
       }
-    }.start();
+    }).start();
     pack();
   }
-  
+
+  private void append(String text)
+  {
+    this.textArea.append(text);
+    int excess = this.textArea.getLineCount() - this.maxLines;
+    if (excess > 0) {
+      try
+      {
+        this.textArea.replaceRange(null, 0, this.textArea.getLineStartOffset(excess));
+      }
+      catch (BadLocationException e) {}
+    }
+    scrollDown();
+  }
+
   private void scrollDown()
   {
     int pos = this.textArea.getDocument().getEndPosition().getOffset();
     this.textArea.getCaret().setDot(pos);
     this.textArea.requestFocus();
   }
+
+  /**
+   * Collects what is written to {@code System.out} and {@code System.err}
+   * until the console picks it up. Writers never wait: past the capacity,
+   * the oldest output is discarded.
+   */
+  private static final class ConsoleBuffer
+    extends OutputStream
+  {
+    /**
+     * A ring: the output starts at head and wraps around. It grows up to
+     * the capacity, so writes only ever copy their own bytes.
+     */
+    private byte[] buf = new byte[8192];
+    private int head;
+    private int count;
+    private final int capacity;
+
+    ConsoleBuffer(int capacity)
+    {
+      this.capacity = capacity;
+    }
+
+    public void write(int b)
+    {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    public synchronized void write(byte[] b, int off, int len)
+    {
+      if (len >= this.capacity)
+      {
+        off += len - this.capacity;
+        len = this.capacity;
+        this.head = 0;
+        this.count = 0;
+      }
+      else if (this.count + len > this.capacity)
+      {
+        int drop = this.count + len - this.capacity;
+        this.head = (this.head + drop) % this.buf.length;
+        this.count -= drop;
+      }
+      if (this.count + len > this.buf.length)
+      {
+        byte[] bigger = new byte[Math.min(this.capacity, Math.max(this.buf.length * 2, this.count + len))];
+        copyOut(this.count, bigger);
+        this.buf = bigger;
+        this.head = 0;
+      }
+      int tail = (this.head + this.count) % this.buf.length;
+      int first = Math.min(len, this.buf.length - tail);
+      System.arraycopy(b, off, this.buf, tail, first);
+      System.arraycopy(b, off + first, this.buf, 0, len - first);
+      this.count += len;
+    }
+
+    /**
+     * Copies the first n bytes of the ring to the start of the array.
+     */
+    private void copyOut(int n, byte[] to)
+    {
+      int first = Math.min(n, this.buf.length - this.head);
+      System.arraycopy(this.buf, this.head, to, 0, first);
+      System.arraycopy(this.buf, 0, to, first, n - first);
+    }
+
+    /**
+     * Removes and returns all complete lines, or null if there are none. A
+     * partial line stays until its newline arrives, which also keeps
+     * multi-byte characters in one piece.
+     */
+    synchronized String takeLines()
+    {
+      int end = this.count;
+      while ((end > 0) && (this.buf[((this.head + end - 1) % this.buf.length)] != 10)) {
+        end--;
+      }
+      if (end == 0) {
+        return null;
+      }
+      byte[] lines = new byte[end];
+      copyOut(end, lines);
+      this.head = (this.head + end) % this.buf.length;
+      this.count -= end;
+      return new String(lines);
+    }
+  }
 }
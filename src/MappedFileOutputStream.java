@@ -0,0 +1,182 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends to a file by copying into a memory-mapped window over its end,
+ * instead of making a system call per write.
+ *
+ * The window is {@link #WINDOW} bytes long and moves forward a whole window
+ * at a time. While the stream is open the file therefore looks longer than
+ * what was written, padded with NULs; {@link #close()} truncates it back to
+ * the real length, so the stream has to be closed before the JVM exits, as
+ * {@link LogFileOutputStream} does from a shutdown hook. When a file is
+ * opened that still has such padding, left by a JVM that was killed,
+ * appending starts right after the last non-NUL byte.
+ *
+ * A window is forced to disk and unmapped once it is full and on close,
+ * rather than left to the garbage collector: the file can't be truncated on
+ * Windows while any part of it is still mapped. Until then the written
+ * pages are in the page cache like those of any other write, so only a
+ * crash of the whole machine can lose them.
+ *
+ * Not thread safe; {@link LogFileOutputStream} serializes access.
+ */
+final class MappedFileOutputStream
+  extends OutputStream
+{
+  static final int WINDOW = 16777216;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private MappedByteBuffer window;
+  /**
+   * Offset in the file of the next byte to write.
+   */
+  private long position;
+
+  MappedFileOutputStream(File file)
+    throws IOException
+  {
+    this.raf = new RandomAccessFile(file, "rw");
+    this.channel = this.raf.getChannel();
+    this.position = dataLength(this.channel);
+    this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, this.position, WINDOW);
+  }
+
+  /**
+   * Bytes of real data in the file, which is where the next write goes.
+   */
+  long position()
+  {
+    return this.position;
+  }
+
+  public void write(int b)
+    throws IOException
+  {
+    if (!this.window.hasRemaining()) {
+      advance();
+    }
+    this.window.put((byte)b);
+    this.position += 1L;
+  }
+
+  public void write(byte[] b, int off, int len)
+    throws IOException
+  {
+    while (len > 0)
+    {
+      if (!this.window.hasRemaining()) {
+        advance();
+      }
+      int n = Math.min(len, this.window.remaining());
+      this.window.put(b, off, n);
+      this.position += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  public void close()
+    throws IOException
+  {
+    MappedByteBuffer w = this.window;
+    this.window = null;
+    try
+    {
+      release(w);
+      this.channel.truncate(this.position);
+    }
+    catch (IOException e) {}
+    this.raf.close();
+  }
+
+  private void advance()
+    throws IOException
+  {
+    MappedByteBuffer full = this.window;
+    this.window = null;
+    release(full);
+    this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, this.position, WINDOW);
+  }
+
+  /**
+   * Forces the window to disk and unmaps it; it must not be used afterwards.
+   */
+  private static void release(MappedByteBuffer w)
+  {
+    if (w == null) {
+      return;
+    }
+    try
+    {
+      w.force();
+    }
+    catch (RuntimeException e) {}
+    unmap(w);
+  }
+
+  /**
+   * Unmaps the buffer right away, through {@code Unsafe.invokeCleaner} on
+   * Java 9 and later and through the buffer's cleaner before that. Where
+   * neither is accessible, the mapping goes when the buffer is collected.
+   */
+  private static void unmap(MappedByteBuffer w)
+  {
+    try
+    {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", new Class[] { ByteBuffer.class });
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), new Object[] { w });
+      return;
+    }
+    catch (Exception e) {}
+    try
+    {
+      Method cleaner = w.getClass().getMethod("cleaner", new Class[0]);
+      cleaner.setAccessible(true);
+      Object c = cleaner.invoke(w, new Object[0]);
+      if (c != null) {
+        c.getClass().getMethod("clean", new Class[0]).invoke(c, new Object[0]);
+      }
+    }
+    catch (Exception e) {}
+  }
+
+  /**
+   * Length of the file without the trailing NULs of a window that was never
+   * truncated.
+   */
+  private static long dataLength(FileChannel ch)
+    throws IOException
+  {
+    long end = ch.size();
+    ByteBuffer buf = ByteBuffer.allocate(65536);
+    while (end > 0L)
+    {
+      long start = Math.max(0L, end - buf.capacity());
+      buf.clear();
+      buf.limit((int)(end - start));
+      while (buf.hasRemaining()) {
+        if (ch.read(buf, start + buf.position()) < 0) {
+          break;
+        }
+      }
+      for (int i = buf.position() - 1; i >= 0; i--) {
+        if (buf.get(i) != 0) {
+          return start + i + 1L;
+        }
+      }
+      end = start;
+    }
+    return 0L;
+  }
+}
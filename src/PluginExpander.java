@@ -0,0 +1,258 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Installs and explodes the plugins bundled in {@code WEB-INF/plugins} of the
+ * exploded webroot into {@code JENKINS_HOME/plugins} while Winstone is being
+ * prepared, several at a time, which Jenkins would otherwise do one plugin at
+ * a time once it is up.
+ *
+ * That overlaps loading Winstone's classes, not the Winstone boot itself: the
+ * launcher waits for all plugins before it calls {@code winstone.Launcher},
+ * since Jenkins starts reading {@code JENKINS_HOME/plugins} from a thread of
+ * its own while Winstone deploys it, and nothing here could hold that back
+ * until a plugin is complete.
+ *
+ * It follows the rules of Jenkins' own {@code PluginManager} and
+ * {@code ClassicPluginStrategy}, so that Jenkins finds nothing left to do: a
+ * bundled {@code foo.hpi} is copied to {@code foo.jpi} unless that exists and
+ * either has the modification time of the bundled file or is pinned, and
+ * {@code foo.jpi} is exploded into {@code foo/} unless {@code foo/.timestamp2}
+ * has the archive's modification time. A copy whose checksum already matches
+ * the bundled plugin only gets its modification time fixed. Plugins still
+ * installed under their legacy {@code .hpi} name are left to Jenkins.
+ */
+final class PluginExpander
+{
+  private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private final File bundledDir;
+  private final File pluginsDir;
+
+  PluginExpander(File webroot, File home)
+  {
+    this.bundledDir = new File(webroot, "WEB-INF/plugins");
+    this.pluginsDir = new File(home, "plugins");
+  }
+
+  /**
+   * Starts expanding the bundled plugins in the background. The returned
+   * future completes once all of them are done, and never fails: a plugin that
+   * couldn't be expanded is reported and left to Jenkins.
+   */
+  Future<Object> start()
+  {
+    final StartupPipeline pipeline = new StartupPipeline(THREADS + 1);
+    Future<Object> all = pipeline.submit(new Callable<Object>()
+    {
+      public Object call()
+        throws Exception
+      {
+        StartupProfile.Phase phase = StartupProfile.start("expand bundled plugins");
+        try
+        {
+          PluginExpander.this.expandAll(pipeline);
+        }
+        catch (Exception e)
+        {
+          System.err.println("Failed to expand the bundled plugins, leaving that to Jenkins: " + e);
+        }
+        finally
+        {
+          pipeline.shutdown();
+          phase.end();
+        }
+        return null;
+      }
+    });
+    return all;
+  }
+
+  private void expandAll(StartupPipeline pipeline)
+    throws Exception
+  {
+    File[] bundled = this.bundledDir.listFiles();
+    if (bundled == null) {
+      return;
+    }
+    this.pluginsDir.mkdirs();
+    List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+    for (int i = 0; i < bundled.length; i++)
+    {
+      final File hpi = bundled[i];
+      if (!hpi.getName().endsWith(".hpi")) {
+        continue;
+      }
+      tasks.add(pipeline.submit(new Callable<Object>()
+      {
+        public Object call()
+        {
+          String name = hpi.getName().substring(0, hpi.getName().length() - 4);
+          try
+          {
+            PluginExpander.this.expand(name, hpi);
+          }
+          catch (IOException x)
+          {
+            System.err.println("Failed to expand the bundled plugin " + name + ", leaving it to Jenkins: " + x);
+          }
+          return null;
+        }
+      }));
+    }
+    for (int i = 0; i < tasks.size(); i++) {
+      tasks.get(i).get();
+    }
+  }
+
+  private void expand(String name, File hpi)
+    throws IOException
+  {
+    long start = System.nanoTime();
+    if (new File(this.pluginsDir, name + ".hpi").exists()) {
+      return;
+    }
+    File archive = new File(this.pluginsDir, name + ".jpi");
+    File pinned = new File(this.pluginsDir, name + ".jpi.pinned");
+    File dir = new File(this.pluginsDir, name);
+    File timestamp = new File(dir, ".timestamp2");
+    String before = version(new File(dir, "META-INF/MANIFEST.MF"));
+    long time = hpi.lastModified();
+
+    boolean copied = false;
+    if ((!archive.exists()) || ((archive.lastModified() != time) && (!pinned.exists())))
+    {
+      if ((!archive.isFile()) || (archive.length() != hpi.length()) || (crc(archive) != crc(hpi))) {
+        copy(hpi, archive);
+        copied = true;
+      }
+      archive.setLastModified(time);
+    }
+    if ((timestamp.exists()) && (timestamp.lastModified() == archive.lastModified()))
+    {
+      if (copied) {
+        log(name, before, "copied", start);
+      }
+      return;
+    }
+    Main.deleteContents(dir);
+    unzip(archive, dir);
+    new FileOutputStream(timestamp).close();
+    timestamp.setLastModified(archive.lastModified());
+    log(name, before, "expanded", start);
+  }
+
+  private void log(String name, String before, String what, long start)
+  {
+    String after = version(new File(new File(this.pluginsDir, name), "META-INF/MANIFEST.MF"));
+    String v = after == null ? "" : (before == null) || (before.equals(after)) ? " " + after : " " + before + " -> " + after;
+    System.out.println("Bundled plugin " + name + v + " " + what + " in " + (System.nanoTime() - start) / 1000000L + " ms");
+  }
+
+  private static void copy(File source, File target)
+    throws IOException
+  {
+    File tmp = new File(target.getPath() + ".tmp");
+    Extractor.copy(source, tmp);
+    target.delete();
+    if (!tmp.renameTo(target)) {
+      throw new IOException("Failed to rename " + tmp + " to " + target);
+    }
+  }
+
+  private static void unzip(File archive, File dir)
+    throws IOException
+  {
+    ZipFile zip = new ZipFile(archive);
+    try
+    {
+      for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements();)
+      {
+        ZipEntry e = en.nextElement();
+        File f = new File(dir, e.getName());
+        if (!f.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator)) {
+          throw new IOException("Entry " + e.getName() + " of " + archive + " is outside of the plugin");
+        }
+        if (e.isDirectory())
+        {
+          f.mkdirs();
+        }
+        else
+        {
+          f.getParentFile().mkdirs();
+          InputStream in = zip.getInputStream(e);
+          try
+          {
+            Extractor.copy(in, f, e.getSize());
+          }
+          finally
+          {
+            in.close();
+          }
+        }
+        if (e.getTime() != -1L) {
+          f.setLastModified(e.getTime());
+        }
+      }
+    }
+    finally
+    {
+      zip.close();
+    }
+  }
+
+  private static long crc(File f)
+    throws IOException
+  {
+    CRC32 crc = new CRC32();
+    InputStream in = new FileInputStream(f);
+    try
+    {
+      byte[] buf = new byte[65536];
+      int len;
+      while ((len = in.read(buf)) > 0) {
+        crc.update(buf, 0, len);
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * {@code Plugin-Version} of an exploded plugin, or null.
+   */
+  private static String version(File manifest)
+  {
+    if (!manifest.isFile()) {
+      return null;
+    }
+    try
+    {
+      InputStream in = new FileInputStream(manifest);
+      try
+      {
+        return new Manifest(in).getMainAttributes().getValue("Plugin-Version");
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (IOException e) {}
+    return null;
+  }
+}
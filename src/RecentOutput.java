@@ -0,0 +1,284 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+/**
+ * The last few megabytes of what {@link LogFileOutputStream} wrote, kept in a
+ * ring in a direct buffer outside the heap, so that the recent log can be
+ * read without going to the file.
+ *
+ * Only one thread writes at a time, under the lock of the stream. Readers
+ * take no lock and never hold up the writer: they copy the ring and then
+ * check how far the writer got meanwhile, dropping from the copy whatever it
+ * may have overwritten, like a seqlock. {@link #writing} is raised before
+ * bytes go into the ring and {@link #written} after, so a reader that saw
+ * {@code written} before copying and {@code writing} after knows which of
+ * the copied bytes are still intact.
+ *
+ * The output can be read with the {@code tail} operation of the MBean, and
+ * with {@code --logfileRecentPort} by connecting to that port on the loopback
+ * address, which sends all of it and closes the connection. Jenkins prints
+ * secrets to its output, the initial admin password among them, and any
+ * local user can connect to the loopback address, so the port only answers
+ * clients that first send the random token in {@code <logfile>.recent-token},
+ * a file only the user running Jenkins can read:
+ * <pre>
+ * nc localhost PORT &lt; jenkins.log.recent-token
+ * </pre>
+ */
+final class RecentOutput
+  implements RecentOutputMBean
+{
+  /**
+   * Only the writer moves the position of this one; readers use duplicates.
+   */
+  private final ByteBuffer ring;
+  private final int capacity;
+  private final AtomicLong writing = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private static final int TOKEN_TIMEOUT = 5000;
+
+  RecentOutput(int capacity)
+  {
+    this.capacity = capacity;
+    this.ring = ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * Called with the lock of the stream held.
+   */
+  void write(byte[] b, int off, int len)
+  {
+    if (len > this.capacity)
+    {
+      off += len - this.capacity;
+      len = this.capacity;
+    }
+    long end = this.written.get();
+    // getAndSet keeps the stores into the ring from moving ahead of it
+    this.writing.getAndSet(end + len);
+    int pos = (int)(end % this.capacity);
+    int first = Math.min(len, this.capacity - pos);
+    this.ring.position(pos);
+    this.ring.put(b, off, first);
+    if (first < len)
+    {
+      this.ring.position(0);
+      this.ring.put(b, off + first, len - first);
+    }
+    this.written.set(end + len);
+  }
+
+  /**
+   * A consistent copy of up to {@code max} bytes of the most recent output.
+   */
+  byte[] snapshot(int max)
+  {
+    ByteBuffer r = this.ring.duplicate();
+    for (;;)
+    {
+      long end = this.written.get();
+      long start = Math.max(0L, end - Math.min(max, this.capacity));
+      byte[] b = new byte[(int)(end - start)];
+      int pos = (int)(start % this.capacity);
+      int first = Math.min(b.length, this.capacity - pos);
+      r.position(pos);
+      r.get(b, 0, first);
+      if (first < b.length)
+      {
+        r.position(0);
+        r.get(b, first, b.length - first);
+      }
+      // the write half of getAndAdd keeps the loads from the ring ahead of it
+      long overwritten = this.writing.getAndAdd(0L) - this.capacity;
+      if (overwritten <= start) {
+        return b;
+      }
+      if (overwritten < end)
+      {
+        byte[] intact = new byte[(int)(end - overwritten)];
+        System.arraycopy(b, (int)(overwritten - start), intact, 0, intact.length);
+        return intact;
+      }
+      // the writer went around the whole ring while this copied it
+    }
+  }
+
+  public int getCapacity()
+  {
+    return this.capacity;
+  }
+
+  public long getWrittenBytes()
+  {
+    return this.written.get();
+  }
+
+  public String tail(int maxBytes)
+  {
+    return new String(snapshot(Math.max(0, maxBytes)), Charset.defaultCharset());
+  }
+
+  /**
+   * Makes the output readable over JMX, if the platform MBean server is
+   * available.
+   */
+  void register()
+  {
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("jenkins.launcher:type=RecentOutput"));
+    }
+    catch (Exception e) {}
+  }
+
+  /**
+   * Serves the output on the given port of the loopback address to clients
+   * that send the token written to the given file.
+   */
+  void listen(int port, File tokenFile)
+  {
+    final byte[] token;
+    final ServerSocket server;
+    try
+    {
+      token = writeToken(tokenFile);
+      server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+    catch (IOException e)
+    {
+      System.err.println("Failed to listen for the recent log on port " + port + ": " + e);
+      return;
+    }
+    Thread t = new Thread("Recent log on port " + port)
+    {
+      public void run()
+      {
+        for (;;) {
+          try
+          {
+            RecentOutput.this.serve(server.accept(), token);
+          }
+          catch (IOException e) {}
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Sends the output to the client on a thread of its own, as a client that
+   * stops reading would otherwise block the write, and every client after it,
+   * for good; this way it only holds up its own thread.
+   */
+  private void serve(final Socket s, final byte[] token)
+  {
+    Thread t = new Thread("Recent log to " + s.getRemoteSocketAddress())
+    {
+      public void run()
+      {
+        try
+        {
+          try
+          {
+            s.setSoTimeout(TOKEN_TIMEOUT);
+            if (MessageDigest.isEqual(token, RecentOutput.readToken(s.getInputStream(), token.length)))
+            {
+              OutputStream out = s.getOutputStream();
+              out.write(RecentOutput.this.snapshot(RecentOutput.this.capacity));
+              out.flush();
+              // closing with the client's line end still unread would reset
+              // the connection and could cut the output short
+              s.shutdownOutput();
+              InputStream in = s.getInputStream();
+              while (in.read() >= 0) {}
+            }
+          }
+          finally
+          {
+            s.close();
+          }
+        }
+        catch (IOException e) {}
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Creates the token file, readable by the owner only, with a new random
+   * token; it is deleted when the JVM exits.
+   */
+  private static byte[] writeToken(File f)
+    throws IOException
+  {
+    byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < random.length; i++) {
+      sb.append(Integer.toHexString(256 + (random[i] & 0xFF)).substring(1));
+    }
+    byte[] token = sb.toString().getBytes("US-ASCII");
+    f.delete();
+    try
+    {
+      Files.createFile(f.toPath(), new FileAttribute[] { PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")) });
+    }
+    catch (UnsupportedOperationException e)
+    {
+      Files.createFile(f.toPath(), new FileAttribute[0]);
+      f.setReadable(false, false);
+      f.setReadable(true, true);
+      f.setWritable(false, false);
+      f.setWritable(true, true);
+    }
+    f.deleteOnExit();
+    OutputStream out = new FileOutputStream(f);
+    try
+    {
+      out.write(token);
+      out.write(10);
+    }
+    finally
+    {
+      out.close();
+    }
+    return token;
+  }
+
+  /**
+   * Reads what the client sent up to the given length, or up to a line end.
+   */
+  private static byte[] readToken(InputStream in, int length)
+    throws IOException
+  {
+    byte[] b = new byte[length];
+    int n = 0;
+    while (n < length)
+    {
+      int c = in.read();
+      if ((c < 0) || (c == 10) || (c == 13)) {
+        break;
+      }
+      b[n++] = (byte)c;
+    }
+    return n == length ? b : new byte[0];
+  }
+}
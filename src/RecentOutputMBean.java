@@ -0,0 +1,21 @@
+/**
+ * Management interface of {@link RecentOutput}, registered as
+ * {@code jenkins.launcher:type=RecentOutput}.
+ */
+public interface RecentOutputMBean
+{
+  /**
+   * How much of the most recent output is kept, in bytes.
+   */
+  int getCapacity();
+
+  /**
+   * Bytes of output written so far.
+   */
+  long getWrittenBytes();
+
+  /**
+   * Up to the given number of bytes of the most recent output, as text.
+   */
+  String tail(int maxBytes);
+}
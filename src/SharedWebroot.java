@@ -0,0 +1,235 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * {@code --sharedWebroot=}: one exploded, read-only copy of the war for all
+ * the Jenkins instances on a host that run the same war, instead of one
+ * under each {@code JENKINS_HOME}, so the page cache holds its jars once.
+ *
+ * The tree is {@code jenkins-<version>-<hash>} in the given folder, the hash
+ * being the SHA-256 of the names, CRCs and sizes of the war's entries, so
+ * that two wars can't end up sharing one tree by chance. The first instance
+ * to need it explodes the war into {@code <tree>.partial} with
+ * {@link WebrootExploder}, makes it read-only and renames it into place, all
+ * while holding {@code .<tree>.lock}; the others wait on that lock and then
+ * find the tree. Every instance holds a shared lock on
+ * {@code .<tree>.inuse} for as long as it runs, and trees nobody holds that
+ * lock on any more are deleted. {@code winstone.jar} is extracted into the
+ * same folder, where {@link ExtractionCache} keeps the one of each war
+ * version for as long as an instance uses it, in the same way.
+ *
+ * Everything an instance changes stays in its own {@code JENKINS_HOME}; the
+ * bundled plugins are expanded there from the shared tree.
+ */
+final class SharedWebroot
+{
+  /**
+   * The in-use locks, held open until the JVM exits.
+   */
+  private static final List<RandomAccessFile> IN_USE = new ArrayList<RandomAccessFile>();
+  private final File root;
+  private final File war;
+  private final String name;
+
+  SharedWebroot(File root, File war, String version)
+    throws IOException
+  {
+    this.root = root;
+    this.war = war;
+    this.name = "jenkins-" + (version.length() > 0 ? version : "unknown") + "-" + hash(war);
+  }
+
+  /**
+   * Returns the tree for the war, creating it first if needed.
+   */
+  File acquire()
+    throws Exception
+  {
+    File tree = new File(this.root, this.name);
+    RandomAccessFile lockFile = new RandomAccessFile(new File(this.root, "." + this.name + ".lock"), "rw");
+    try
+    {
+      FileLock lock = lockFile.getChannel().lock();
+      try
+      {
+        if (!tree.isDirectory())
+        {
+          File partial = new File(this.root, this.name + ".partial");
+          delete(partial);
+          new WebrootExploder(this.war, partial).explode();
+          setReadOnly(partial);
+          if (!partial.renameTo(tree)) {
+            throw new IOException("Failed to rename " + partial + " to " + tree);
+          }
+          System.out.println("Created the shared webroot " + tree);
+        }
+        RandomAccessFile inUse = new RandomAccessFile(new File(this.root, "." + this.name + ".inuse"), "rw");
+        inUse.getChannel().lock(0L, Long.MAX_VALUE, true);
+        synchronized (IN_USE)
+        {
+          IN_USE.add(inUse);
+        }
+      }
+      finally
+      {
+        lock.release();
+      }
+    }
+    finally
+    {
+      lockFile.close();
+    }
+    removeUnused();
+    return tree;
+  }
+
+  /**
+   * Deletes the trees of other wars that no running instance holds on to.
+   */
+  private void removeUnused()
+  {
+    File[] files = this.root.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (int i = 0; i < files.length; i++)
+    {
+      String n = files[i].getName();
+      if ((files[i].isDirectory()) && (n.startsWith("jenkins-")) && (!n.equals(this.name)) && (!n.endsWith(".partial"))) {
+        try
+        {
+          removeIfUnused(n);
+        }
+        catch (IOException e)
+        {
+          System.err.println("Failed to delete the unused shared webroot " + files[i] + ": " + e);
+        }
+        catch (OverlappingFileLockException e) {}
+      }
+    }
+  }
+
+  private void removeIfUnused(String n)
+    throws IOException
+  {
+    RandomAccessFile lockFile = new RandomAccessFile(new File(this.root, "." + n + ".lock"), "rw");
+    try
+    {
+      FileLock lock = lockFile.getChannel().tryLock();
+      if (lock == null) {
+        return;
+      }
+      try
+      {
+        File inUseFile = new File(this.root, "." + n + ".inuse");
+        RandomAccessFile inUse = new RandomAccessFile(inUseFile, "rw");
+        try
+        {
+          FileLock unused = inUse.getChannel().tryLock();
+          if (unused == null) {
+            return;
+          }
+          try
+          {
+            delete(new File(this.root, n));
+            System.out.println("Deleted the unused shared webroot " + n);
+          }
+          finally
+          {
+            unused.release();
+          }
+        }
+        finally
+        {
+          inUse.close();
+        }
+        inUseFile.delete();
+      }
+      finally
+      {
+        lock.release();
+      }
+    }
+    finally
+    {
+      lockFile.close();
+    }
+  }
+
+  private static void setReadOnly(File f)
+  {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (int i = 0; i < children.length; i++) {
+        setReadOnly(children[i]);
+      }
+    }
+    f.setWritable(false, false);
+  }
+
+  private static void delete(File f)
+    throws IOException
+  {
+    if (!f.exists()) {
+      return;
+    }
+    f.setWritable(true);
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (int i = 0; i < children.length; i++) {
+        delete(children[i]);
+      }
+    }
+    if (!f.delete()) {
+      throw new IOException("Failed to delete " + f);
+    }
+  }
+
+  /**
+   * SHA-256, in hex, of the names, CRCs and sizes of the entries of the war,
+   * which the zip central directory holds without reading the entries.
+   */
+  private static String hash(File war)
+    throws IOException
+  {
+    MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new IOException(e);
+    }
+    ZipFile zip = new ZipFile(war);
+    try
+    {
+      for (Enumeration en = zip.entries(); en.hasMoreElements();)
+      {
+        ZipEntry e = (ZipEntry)en.nextElement();
+        byte[] b = (e.getName() + ":" + e.getCrc() + ":" + e.getSize() + "\n").getBytes("UTF-8");
+        digest.update(b);
+      }
+    }
+    finally
+    {
+      zip.close();
+    }
+    byte[] d = digest.digest();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < d.length; i++) {
+      sb.append(Integer.toHexString(256 + (d[i] & 0xFF)).substring(1));
+    }
+    return sb.toString();
+  }
+}
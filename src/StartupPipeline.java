@@ -0,0 +1,71 @@
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the independent I/O steps of the launcher (extraction, clean up of old
+ * webroots, manifest reading) in the background, so that the main thread only
+ * waits for them at the point where it actually needs their results.
+ *
+ * The threads are daemons; a launcher that exits early (say for
+ * {@code --version}) doesn't wait for them.
+ */
+final class StartupPipeline
+{
+  private final ExecutorService executor;
+
+  StartupPipeline(int threads)
+  {
+    final AtomicInteger count = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "Jenkins launcher #" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  <T> Future<T> submit(Callable<T> task)
+  {
+    return this.executor.submit(task);
+  }
+
+  /**
+   * Lets the queued tasks finish but accepts no new ones.
+   */
+  void shutdown()
+  {
+    this.executor.shutdown();
+  }
+
+  /**
+   * Waits for a task and rethrows whatever it failed with as if it had been
+   * run on the calling thread.
+   */
+  static <T> T await(Future<T> f)
+    throws Exception
+  {
+    try
+    {
+      return f.get();
+    }
+    catch (ExecutionException e)
+    {
+      Throwable t = e.getCause();
+      if ((t instanceof Exception)) {
+        throw ((Exception)t);
+      }
+      if ((t instanceof Error)) {
+        throw ((Error)t);
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timings of the launcher phases, measured with {@link System#nanoTime()},
+ * along with how many bytes each phase copied to disk.
+ *
+ * Phases are always recorded, since that costs next to nothing. With
+ * {@code --startupReport} the launcher prints them once Winstone is up, and
+ * with {@code --startupReportFile=} it also writes them as JSON.
+ */
+final class StartupProfile
+{
+  private static final long ORIGIN = System.nanoTime();
+  private static final List<Entry> entries = new ArrayList<Entry>();
+  /**
+   * Bytes moved so far by the current thread.
+   */
+  private static final ThreadLocal<long[]> moved = new ThreadLocal<long[]>()
+  {
+    protected long[] initialValue()
+    {
+      return new long[1];
+    }
+  };
+
+  private StartupProfile() {}
+
+  static Phase start(String name)
+  {
+    return new Phase(name);
+  }
+
+  /**
+   * Called by whatever copies data, to have the bytes counted against the
+   * phases in progress on this thread.
+   */
+  static void moved(long bytes)
+  {
+    moved.get()[0] += bytes;
+  }
+
+  static final class Phase
+  {
+    private final String name;
+    private final long start = System.nanoTime();
+    private final long bytes = StartupProfile.moved.get()[0];
+
+    Phase(String name)
+    {
+      this.name = name;
+    }
+
+    void end()
+    {
+      Entry e = new Entry(this.name, Thread.currentThread().getName(), this.start - StartupProfile.ORIGIN, System.nanoTime() - this.start, StartupProfile.moved.get()[0] - this.bytes);
+      synchronized (StartupProfile.entries)
+      {
+        StartupProfile.entries.add(e);
+      }
+    }
+  }
+
+  private static final class Entry
+  {
+    final String name;
+    final String thread;
+    final long offset;
+    final long duration;
+    final long bytes;
+
+    Entry(String name, String thread, long offset, long duration, long bytes)
+    {
+      this.name = name;
+      this.thread = thread;
+      this.offset = offset;
+      this.duration = duration;
+      this.bytes = bytes;
+    }
+  }
+
+  private static List<Entry> snapshot()
+  {
+    synchronized (entries)
+    {
+      return new ArrayList<Entry>(entries);
+    }
+  }
+
+  /**
+   * How long the first phase of that name took, in nanoseconds, or -1 if it
+   * hasn't ended yet.
+   */
+  static long duration(String name)
+  {
+    List<Entry> all = snapshot();
+    for (int i = 0; i < all.size(); i++) {
+      if (all.get(i).name.equals(name)) {
+        return all.get(i).duration;
+      }
+    }
+    return -1L;
+  }
+
+  static void print(PrintStream out)
+  {
+    List<Entry> all = snapshot();
+    out.println("Launcher startup, " + millis(System.nanoTime() - ORIGIN) + " ms since the launcher started:");
+    for (int i = 0; i < all.size(); i++)
+    {
+      Entry e = all.get(i);
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("  %8s ms  +%8s ms  %-40s", new Object[] { millis(e.duration), millis(e.offset), e.name }));
+      if (e.bytes > 0L) {
+        sb.append(' ').append(e.bytes).append(" bytes");
+      }
+      if (!e.thread.equals("main")) {
+        sb.append(" [").append(e.thread).append(']');
+      }
+      out.println(sb.toString().replaceFirst("\\s+$", ""));
+    }
+  }
+
+  static void writeJson(File file, String version)
+    throws IOException
+  {
+    List<Entry> all = snapshot();
+    Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try
+    {
+      w.write("{\"version\":" + quote(version) + ",\"timestamp\":" + System.currentTimeMillis() + ",\"totalMillis\":" + millis(System.nanoTime() - ORIGIN) + ",\"phases\":[");
+      for (int i = 0; i < all.size(); i++)
+      {
+        Entry e = all.get(i);
+        if (i > 0) {
+          w.write(",");
+        }
+        w.write("\n  {\"name\":" + quote(e.name) + ",\"thread\":" + quote(e.thread) + ",\"startMillis\":" + millis(e.offset) + ",\"millis\":" + millis(e.duration) + ",\"bytes\":" + e.bytes + "}");
+      }
+      w.write("\n]}\n");
+    }
+    finally
+    {
+      w.close();
+    }
+  }
+
+  private static String millis(long nanos)
+  {
+    return String.valueOf(nanos / 1000L / 1000.0D);
+  }
+
+  private static String quote(String s)
+  {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if ((c == '"') || (c == '\\')) {
+        sb.append('\\').append(c);
+      } else if (c < ' ') {
+        sb.append(String.format("\\u%04x", new Object[] { Integer.valueOf(c) }));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+}
@@ -0,0 +1,398 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * {@code --supervise}: keeps a small launcher process running that starts
+ * Jenkins in a child JVM and starts it again when it dies.
+ *
+ * The child is the launcher itself, given the same arguments, so it extracts
+ * Winstone and explodes the webroot as usual; as the supervisor passes it the
+ * same {@code --extractedFilesFolder} each time, a temporary one if none was
+ * given, a restart finds them all up to date, and with {@code --appCDS} it
+ * also finds the class data sharing archive the first run recorded.
+ *
+ * The supervisor owns {@code --logfile}, {@code --logsink} and
+ * {@code --daemon}: the child's output is copied into its own. A child that
+ * exits with 0 was stopped on purpose, and the supervisor exits with it. Any other exit is a crash, and
+ * the child is started again after a delay that starts at a second and
+ * doubles with each crash up to a minute, going back to a second once a child
+ * has stayed up for ten minutes. Once a child has started Winstone it creates
+ * a file the supervisor watches for, which is how long a restart took is
+ * measured, from the crash until Jenkins is listening again. Crashes, the exit
+ * code and that latency are printed, and kept in {@code supervisor.properties}
+ * in the extraction folder.
+ *
+ * From then on the child touches that file every {@link #HEARTBEAT} ms, each
+ * time Jenkins answers an HTTP request from it, or just as it goes if HTTP is
+ * disabled. A child whose file hasn't been touched for
+ * {@code --superviseHangTimeout} seconds (default 120, 0 to not check) is
+ * hung, deadlocked or stuck in garbage collection: the supervisor kills it,
+ * forcibly if it doesn't stop within ten seconds, and restarts it like a
+ * child that crashed.
+ */
+final class Supervisor
+{
+  /**
+   * Set on the child JVM to the file to create once Winstone is up, which
+   * also tells it not to supervise again.
+   */
+  static final String PROPERTY = "jenkins.launcher.supervised";
+  private static final long MIN_DELAY = 1000L;
+  private static final long MAX_DELAY = 60000L;
+  private static final long STABLE = 600000L;
+  private static final long POLL = 100L;
+  static final long HEARTBEAT = 10000L;
+  private static final long KILL_TIMEOUT = 10000L;
+  private final File folder;
+  private final boolean temporary;
+  private final List<String> args;
+  private final File ready;
+  private final File stats;
+  private final long hangTimeout;
+  private volatile boolean stopping;
+  private volatile Process child;
+  private int crashes;
+  private int restarts;
+  private int lastExitCode = -1;
+  private long lastRestartMillis = -1L;
+
+  Supervisor(File folder, String[] args)
+    throws IOException
+  {
+    this.temporary = folder == null;
+    if (this.temporary)
+    {
+      folder = File.createTempFile("jenkins-supervisor", "");
+      folder.delete();
+      if (!folder.mkdirs()) {
+        throw new IOException("Failed to create " + folder);
+      }
+    }
+    this.folder = folder;
+    this.args = childArguments(args, folder);
+    this.ready = new File(folder, "supervisor.ready");
+    this.stats = new File(folder, "supervisor.properties");
+    long hang = 120L;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].startsWith("--superviseHangTimeout=")) {
+        hang = LogFileSettings.number(args[i], hang);
+      }
+    }
+    // a few heartbeats at least, so that one slow answer isn't a hang
+    this.hangTimeout = hang <= 0L ? 0L : Math.max(3L * HEARTBEAT, hang * 1000L);
+  }
+
+  static boolean isRequested(String[] args)
+  {
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--supervise")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The arguments without the options the supervisor handles itself, and
+   * with the extraction folder.
+   */
+  private static List<String> childArguments(String[] args, File folder)
+  {
+    List<String> r = new ArrayList<String>(Arrays.asList(args));
+    for (Iterator<String> itr = r.iterator(); itr.hasNext();)
+    {
+      String a = itr.next();
+      if ((a.startsWith("--supervise")) || (a.startsWith("--daemon")) || (a.startsWith("--logfile")) || (a.startsWith("--logsink")) || (a.startsWith("--extractedFilesFolder=")) || (a.equals("--appCDS"))) {
+        itr.remove();
+      }
+    }
+    r.add(0, "--extractedFilesFolder=" + folder.getAbsolutePath());
+    return r;
+  }
+
+  /**
+   * Runs children until one exits with 0 or this JVM is shut down, and
+   * returns the last exit code.
+   */
+  int run(String[] args)
+    throws Exception
+  {
+    boolean cds = ClassDataSharing.isRequested(args);
+    if ((cds) && (!ClassDataSharing.isSupported()))
+    {
+      System.err.println("--appCDS needs Java 13 or later. Ignoring.");
+      cds = false;
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread("Jenkins supervisor shutdown")
+    {
+      public void run()
+      {
+        Supervisor.this.stopping = true;
+        Process p = Supervisor.this.child;
+        if (p != null)
+        {
+          p.destroy();
+          try
+          {
+            p.waitFor();
+          }
+          catch (InterruptedException e) {}
+        }
+        if (Supervisor.this.temporary) {
+          try
+          {
+            Main.deleteContents(Supervisor.this.folder);
+            Supervisor.this.folder.delete();
+          }
+          catch (IOException e) {}
+        }
+      }
+    });
+
+    long delay = MIN_DELAY;
+    long crashedAt = -1L;
+    int rc;
+    for (;;)
+    {
+      List<String> options = new ArrayList<String>();
+      if (cds) {
+        options.addAll(new ClassDataSharing(this.folder, Main.getVersion("")).jvmOptions());
+      }
+      options.add("-D" + PROPERTY + "=" + this.ready.getAbsolutePath());
+      this.ready.delete();
+
+      long started = System.currentTimeMillis();
+      if (this.stopping) {
+        return 143;
+      }
+      Process p = new ProcessBuilder(ChildJvm.command(options, this.args)).start();
+      this.child = p;
+      pump(p.getInputStream(), System.out, "stdout");
+      pump(p.getErrorStream(), System.err, "stderr");
+      System.out.println("Started Jenkins in a child JVM" + (this.restarts > 0 ? " (restart " + this.restarts + ")" : ""));
+
+      rc = waitFor(p, crashedAt);
+      this.child = null;
+      if ((rc == 0) || (this.stopping)) {
+        break;
+      }
+      crashedAt = System.currentTimeMillis();
+      if (crashedAt - started >= STABLE) {
+        delay = MIN_DELAY;
+      }
+      this.crashes += 1;
+      this.restarts += 1;
+      System.err.println("Jenkins exited with " + rc + " after " + (crashedAt - started) / 1000L + " s (crash " + this.crashes + "), restarting in " + delay + " ms");
+      record(rc, -1L);
+      Thread.sleep(delay);
+      delay = Math.min(MAX_DELAY, delay * 2L);
+    }
+    record(rc, -1L);
+    return rc;
+  }
+
+  /**
+   * Waits for the child to exit, noting when it is ready on the way and
+   * killing it once its heartbeat stops. With a crash time, how long it took
+   * from then to ready is the restart latency.
+   */
+  private int waitFor(Process p, long crashedAt)
+    throws InterruptedException
+  {
+    boolean seen = false;
+    long killed = -1L;
+    boolean forced = false;
+    for (;;)
+    {
+      try
+      {
+        return p.exitValue();
+      }
+      catch (IllegalThreadStateException e) {}
+      long now = System.currentTimeMillis();
+      if ((!seen) && (this.ready.exists()))
+      {
+        seen = true;
+        if (crashedAt >= 0L)
+        {
+          long latency = now - crashedAt;
+          System.out.println("Jenkins is back up " + latency + " ms after the crash");
+          record(-1, latency);
+        }
+      }
+      if (killed < 0L)
+      {
+        long beat = seen ? this.ready.lastModified() : 0L;
+        if ((seen) && (this.hangTimeout > 0L) && (beat > 0L) && (now - beat > this.hangTimeout))
+        {
+          System.err.println("Jenkins hasn't answered for " + (now - beat) / 1000L + " s, killing it");
+          p.destroy();
+          killed = now;
+        }
+      }
+      else if ((!forced) && (now - killed > KILL_TIMEOUT))
+      {
+        destroyForcibly(p);
+        forced = true;
+      }
+      Thread.sleep(POLL);
+    }
+  }
+
+  /**
+   * {@code Process.destroyForcibly()}, which Java 7 doesn't have; there the
+   * child gets no more than {@code destroy()}.
+   */
+  private static void destroyForcibly(Process p)
+  {
+    try
+    {
+      Process.class.getMethod("destroyForcibly", new Class[0]).invoke(p, new Object[0]);
+    }
+    catch (Exception e) {}
+  }
+
+  private static void pump(final InputStream in, final PrintStream out, String name)
+  {
+    Thread t = new Thread("Jenkins child " + name)
+    {
+      public void run()
+      {
+        byte[] buf = new byte[8192];
+        try
+        {
+          int len;
+          while ((len = in.read(buf)) > 0) {
+            synchronized (out)
+            {
+              out.write(buf, 0, len);
+              out.flush();
+            }
+          }
+        }
+        catch (IOException e) {}
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Updates {@code supervisor.properties}; -1 leaves a value as it was.
+   */
+  private synchronized void record(int exitCode, long latency)
+  {
+    Properties p = new Properties();
+    p.setProperty("crashes", String.valueOf(this.crashes));
+    p.setProperty("restarts", String.valueOf(this.restarts));
+    if (exitCode >= 0) {
+      this.lastExitCode = exitCode;
+    }
+    if (latency >= 0L) {
+      this.lastRestartMillis = latency;
+    }
+    if (this.lastExitCode >= 0) {
+      p.setProperty("lastExitCode", String.valueOf(this.lastExitCode));
+    }
+    if (this.lastRestartMillis >= 0L) {
+      p.setProperty("lastRestartMillis", String.valueOf(this.lastRestartMillis));
+    }
+    try
+    {
+      OutputStream out = new FileOutputStream(this.stats);
+      try
+      {
+        p.store(out, "Jenkins supervisor");
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    catch (IOException e)
+    {
+      System.err.println("Failed to write " + this.stats + ": " + e);
+    }
+  }
+
+  /**
+   * Called in the child JVM once Winstone is up; creates the ready file and
+   * starts the heartbeat.
+   */
+  static void ready(String[] args)
+  {
+    String f = System.getProperty(PROPERTY);
+    if (f == null) {
+      return;
+    }
+    final File file = new File(f);
+    try
+    {
+      new FileOutputStream(file).close();
+    }
+    catch (IOException e)
+    {
+      System.err.println("Failed to tell the supervisor Jenkins is up: " + e);
+      return;
+    }
+    final String url = WarmUp.localUrl(args);
+    Thread t = new Thread("Jenkins supervisor heartbeat")
+    {
+      public void run()
+      {
+        for (;;)
+        {
+          try
+          {
+            Thread.sleep(HEARTBEAT);
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+          if ((url == null) || (Supervisor.answers(url + "/"))) {
+            file.setLastModified(System.currentTimeMillis());
+          }
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Whether Jenkins answers the request with any HTTP status within a
+   * heartbeat.
+   */
+  private static boolean answers(String url)
+  {
+    try
+    {
+      HttpURLConnection con = (HttpURLConnection)new URL(url).openConnection();
+      con.setConnectTimeout((int)HEARTBEAT);
+      con.setReadTimeout((int)HEARTBEAT);
+      try
+      {
+        con.getResponseCode();
+        return true;
+      }
+      finally
+      {
+        con.disconnect();
+      }
+    }
+    catch (IOException e) {}
+    return false;
+  }
+}
@@ -0,0 +1,313 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * {@code --warmUp}: once Winstone is up, requests a few pages of Jenkins over
+ * and over until they stop getting faster, so that the JIT has compiled the
+ * hot paths before real users arrive, and only then reports Jenkins ready.
+ *
+ * It first waits for Jenkins to answer with anything but 503, which it
+ * answers while it loads, for at most {@code --warmUpTimeout} seconds
+ * (default 300). Then, in rounds, every URL is requested
+ * {@code --warmUpConcurrency} times at once (default the number of CPUs, at
+ * most 4). The latency of a round is the median of its requests; warm-up ends
+ * once that has changed by no more than a tenth from one round to the next,
+ * twice in a row, or once the rounds took {@code --warmUpTimeout} seconds
+ * too. The URLs are the dashboard, the list of all jobs, the management page
+ * and the main style sheets and scripts, or those given as
+ * {@code --warmUpUrls=/a,/b}. Any HTTP answer counts, so pages that need a
+ * login still warm up the code that refuses them, but a round in which a
+ * request got no answer at all doesn't. The latency of each URL in the first
+ * and the last round is printed.
+ *
+ * {@code --readyFile=} names a file that is deleted before Winstone starts
+ * and created once Jenkins is warmed up, or right after Winstone started
+ * without {@code --warmUp}, for a load balancer or script to wait for. If
+ * Jenkins never answered in time, say because Winstone listens elsewhere
+ * than on {@code --httpPort} and {@code --httpListenAddress}, the file isn't
+ * created.
+ */
+final class WarmUp
+{
+  private static final String[] DEFAULT_URLS = { "/", "/view/all/", "/manage", "/css/style.css", "/css/color.css", "/scripts/prototype.js", "/scripts/behavior.js", "/scripts/hudson-behavior.js" };
+  private static final int MIN_ROUNDS = 3;
+  private static final int MAX_ROUNDS = 50;
+  private boolean enabled;
+  private List<String> urls = Arrays.asList(DEFAULT_URLS);
+  private int concurrency = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private long timeout = 300000L;
+  private File readyFile;
+  private String base;
+
+  /**
+   * Reads the options and deletes the ready file, which is why this has to
+   * happen before Winstone starts.
+   */
+  WarmUp(String[] args)
+  {
+    for (int i = 0; i < args.length; i++)
+    {
+      String a = args[i];
+      if (a.equals("--warmUp"))
+      {
+        this.enabled = true;
+      }
+      else if (a.startsWith("--warmUpUrls="))
+      {
+        this.enabled = true;
+        this.urls = Arrays.asList(a.substring("--warmUpUrls=".length()).split(","));
+      }
+      else if (a.startsWith("--warmUpConcurrency="))
+      {
+        this.concurrency = (int)Math.min(64L, LogFileSettings.number(a, this.concurrency));
+      }
+      else if (a.startsWith("--warmUpTimeout="))
+      {
+        this.timeout = LogFileSettings.number(a, this.timeout / 1000L) * 1000L;
+      }
+      else if (a.startsWith("--readyFile="))
+      {
+        this.readyFile = new File(a.substring("--readyFile=".length()));
+      }
+    }
+    this.base = localUrl(args);
+    if ((this.enabled) && (this.base == null))
+    {
+      System.err.println("--warmUp needs --httpPort. Ignoring.");
+      this.enabled = false;
+    }
+    if (this.readyFile != null) {
+      this.readyFile.delete();
+    }
+  }
+
+  /**
+   * Where Jenkins can be reached from this host over HTTP, without a trailing
+   * slash, going by {@code --httpPort}, {@code --httpListenAddress} and
+   * {@code --prefix}; null if HTTP is disabled.
+   */
+  static String localUrl(String[] args)
+  {
+    String port = "8080";
+    String address = "127.0.0.1";
+    String prefix = "";
+    for (int i = 0; i < args.length; i++)
+    {
+      String a = args[i];
+      if (a.startsWith("--httpPort="))
+      {
+        port = a.substring("--httpPort=".length());
+      }
+      else if (a.startsWith("--httpListenAddress="))
+      {
+        String v = a.substring("--httpListenAddress=".length());
+        if ((!v.equals("0.0.0.0")) && (!v.equals("::"))) {
+          address = v.indexOf(':') >= 0 ? "[" + v + "]" : v;
+        }
+      }
+      else if (a.startsWith("--prefix="))
+      {
+        prefix = a.substring("--prefix=".length());
+        if (prefix.endsWith("/")) {
+          prefix = prefix.substring(0, prefix.length() - 1);
+        }
+      }
+    }
+    return port.startsWith("-") ? null : "http://" + address + ":" + port + prefix;
+  }
+
+  /**
+   * Warms Jenkins up if asked to, then creates the ready file, unless
+   * warming up found no Jenkins to answer.
+   */
+  void run()
+    throws Exception
+  {
+    if (this.enabled)
+    {
+      StartupProfile.Phase phase = StartupProfile.start("warm up");
+      try
+      {
+        if (!warmUp()) {
+          return;
+        }
+      }
+      finally
+      {
+        phase.end();
+      }
+    }
+    if (this.readyFile != null) {
+      try
+      {
+        new FileOutputStream(this.readyFile).close();
+      }
+      catch (IOException e)
+      {
+        System.err.println("Failed to create the ready file " + this.readyFile + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Returns whether Jenkins answered every URL in at least one round.
+   */
+  private boolean warmUp()
+    throws Exception
+  {
+    long deadline = System.currentTimeMillis() + this.timeout;
+    int status = request(this.urls.get(0));
+    if ((status == 503) || (status == -1))
+    {
+      System.out.println("Waiting for Jenkins to load at " + this.base + " before warming it up");
+      do
+      {
+        Thread.sleep(1000L);
+        status = request(this.urls.get(0));
+      } while (((status == 503) || (status == -1)) && (System.currentTimeMillis() < deadline));
+    }
+    if ((status == 503) || (status == -1))
+    {
+      System.err.println("Jenkins didn't " + (status == -1 ? "answer" : "finish loading") + " at " + this.base + " within " + this.timeout / 1000L + " s, so it isn't reported ready");
+      return false;
+    }
+    long start = System.currentTimeMillis();
+    deadline = start + this.timeout;
+    StartupPipeline pipeline = new StartupPipeline(this.concurrency);
+    try
+    {
+      long[] first = null;
+      long[] last = null;
+      long previous = -1L;
+      int settled = 0;
+      int rounds = 0;
+      int failed = 0;
+      do
+      {
+        long[] r = round(pipeline);
+        if (r == null)
+        {
+          // some request got no answer at all; that round says nothing
+          failed++;
+          settled = 0;
+          Thread.sleep(1000L);
+          continue;
+        }
+        last = r;
+        rounds++;
+        if (first == null) {
+          first = last;
+        }
+        long median = median(last);
+        settled = (previous > 0L) && (Math.abs(median - previous) * 10L <= previous) ? settled + 1 : 0;
+        previous = median;
+        if ((rounds >= MIN_ROUNDS) && (settled >= 2)) {
+          break;
+        }
+      } while ((rounds + failed < MAX_ROUNDS) && (System.currentTimeMillis() < deadline));
+      if (first == null)
+      {
+        System.err.println("Jenkins at " + this.base + " stopped answering while warming up, so it isn't reported ready");
+        return false;
+      }
+      System.out.println("Warmed up with " + rounds + " rounds of " + this.concurrency + " concurrent requests per URL in " + (System.currentTimeMillis() - start) / 1000L + " s" + (settled >= 2 ? "" : ", before latency settled") + (failed > 0 ? ", ignoring " + failed + " rounds with requests that got no answer" : "") + ":");
+      for (int i = 0; i < this.urls.size(); i++) {
+        System.out.println("  " + this.urls.get(i) + ": " + first[i] / 1000000L + " ms -> " + last[i] / 1000000L + " ms");
+      }
+      return true;
+    }
+    finally
+    {
+      pipeline.shutdown();
+    }
+  }
+
+  /**
+   * Requests every URL {@link #concurrency} times at once and returns the
+   * median latency of each, in nanoseconds, or null if any request got no
+   * HTTP answer.
+   */
+  private long[] round(StartupPipeline pipeline)
+    throws Exception
+  {
+    List<Future<Long>> futures = new ArrayList<Future<Long>>();
+    for (int i = 0; i < this.urls.size(); i++)
+    {
+      final String url = this.urls.get(i);
+      for (int j = 0; j < this.concurrency; j++) {
+        futures.add(pipeline.submit(new Callable<Long>()
+        {
+          public Long call()
+          {
+            long t = System.nanoTime();
+            if (WarmUp.this.request(url) == -1) {
+              return Long.valueOf(-1L);
+            }
+            return Long.valueOf(System.nanoTime() - t);
+          }
+        }));
+      }
+    }
+    long[] r = new long[this.urls.size()];
+    boolean answered = true;
+    for (int i = 0; i < r.length; i++)
+    {
+      long[] samples = new long[this.concurrency];
+      for (int j = 0; j < samples.length; j++)
+      {
+        samples[j] = StartupPipeline.await(futures.get(i * this.concurrency + j)).longValue();
+        if (samples[j] < 0L) {
+          answered = false;
+        }
+      }
+      r[i] = median(samples);
+    }
+    return answered ? r : null;
+  }
+
+  private static long median(long[] values)
+  {
+    long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[(sorted.length / 2)];
+  }
+
+  /**
+   * Requests the URL and reads the whole answer; returns the status, or -1
+   * if there was none.
+   */
+  private int request(String path)
+  {
+    try
+    {
+      HttpURLConnection con = (HttpURLConnection)new URL(this.base + path).openConnection();
+      con.setConnectTimeout(30000);
+      con.setReadTimeout(30000);
+      int status = con.getResponseCode();
+      InputStream in = status >= 400 ? con.getErrorStream() : con.getInputStream();
+      if (in != null) {
+        try
+        {
+          byte[] buf = new byte[8192];
+          while (in.read(buf) > 0) {}
+        }
+        finally
+        {
+          in.close();
+        }
+      }
+      return status;
+    }
+    catch (IOException e) {}
+    return -1;
+  }
+}
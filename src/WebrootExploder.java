@@ -0,0 +1,269 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Explodes the war into the webroot before Winstone starts, rewriting only
+ * the entries that changed since the last time.
+ *
+ * The webroot keeps a {@link #MANIFEST} with the CRC and size of every entry
+ * it was exploded from. An entry whose CRC and size match the manifest, and
+ * whose file is still there with that size, is left alone; the others are
+ * unzipped by several threads, each reading the war through its own
+ * {@link ZipFile}, biggest entries first, and keep the modification time of
+ * their entry. Files of entries that are gone from the war are deleted, and
+ * so are the directories that leaves empty.
+ *
+ * The launcher then starts Winstone on the webroot instead of the war, so it
+ * serves the exploded tree rather than unzipping the war again into a
+ * temporary directory of its own. {@code .timestamp} still gets the war's
+ * modification time, which is how Winstone recognizes an up to date webroot
+ * in the modes where it explodes wars itself.
+ */
+final class WebrootExploder
+{
+  static final String MANIFEST = ".launcher-manifest";
+  private static final int THREADS = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+  private final File war;
+  private final File webroot;
+
+  WebrootExploder(File war, File webroot)
+  {
+    this.war = war;
+    this.webroot = webroot;
+  }
+
+  void explode()
+    throws Exception
+  {
+    long start = System.nanoTime();
+    File manifest = new File(this.webroot, MANIFEST);
+    File timestamp = new File(this.webroot, ".timestamp");
+    Map<String, String> old = read(manifest);
+    Map<String, String> current = new HashMap<String, String>();
+    final List<ZipEntry> changed = new ArrayList<ZipEntry>();
+    int total = 0;
+    ZipFile zip = new ZipFile(this.war);
+    try
+    {
+      for (Enumeration en = zip.entries(); en.hasMoreElements();)
+      {
+        ZipEntry e = (ZipEntry)en.nextElement();
+        if ((!e.isDirectory()) && (isSafe(e.getName())))
+        {
+          total++;
+          String key = Long.toHexString(e.getCrc()) + " " + e.getSize();
+          current.put(e.getName(), key);
+          File f = new File(this.webroot, e.getName());
+          if ((!key.equals(old.get(e.getName()))) || (f.length() != e.getSize()) || (!f.isFile())) {
+            changed.add(e);
+          }
+        }
+      }
+    }
+    finally
+    {
+      zip.close();
+    }
+    List<String> removed = new ArrayList<String>();
+    for (Iterator<String> itr = old.keySet().iterator(); itr.hasNext();)
+    {
+      String name = itr.next();
+      if (!current.containsKey(name)) {
+        removed.add(name);
+      }
+    }
+    if ((changed.isEmpty()) && (removed.isEmpty()) && (Math.abs(timestamp.lastModified() - this.war.lastModified()) <= 1000L)) {
+      return;
+    }
+    // until the manifest is written again, a crash leaves a webroot that
+    // both this and Winstone will redo from scratch
+    manifest.delete();
+    timestamp.delete();
+    this.webroot.mkdirs();
+
+    long bytes = unzip(changed);
+    for (int i = 0; i < removed.size(); i++) {
+      remove(new File(this.webroot, removed.get(i)));
+    }
+    write(manifest, current);
+    new FileOutputStream(timestamp).close();
+    timestamp.setLastModified(this.war.lastModified());
+    StartupProfile.moved(bytes);
+    System.out.println("Exploded " + changed.size() + " of " + total + " entries (" + bytes + " bytes) into " + this.webroot + " and removed " + removed.size() + " in " + (System.nanoTime() - start) / 1000000L + " ms");
+  }
+
+  /**
+   * Unzips the entries on {@link #THREADS} threads that take the next entry
+   * from a shared list, largest first, so that the big jars don't all end up
+   * at the end.
+   */
+  private long unzip(final List<ZipEntry> entries)
+    throws Exception
+  {
+    Collections.sort(entries, new Comparator<ZipEntry>()
+    {
+      public int compare(ZipEntry a, ZipEntry b)
+      {
+        long d = b.getCompressedSize() - a.getCompressedSize();
+        return d < 0L ? -1 : d > 0L ? 1 : 0;
+      }
+    });
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicLong bytes = new AtomicLong();
+    int threads = Math.min(THREADS, entries.size());
+    StartupPipeline pipeline = new StartupPipeline(Math.max(1, threads));
+    List<Future<Object>> workers = new ArrayList<Future<Object>>();
+    for (int i = 0; i < threads; i++) {
+      workers.add(pipeline.submit(new Callable<Object>()
+      {
+        public Object call()
+          throws IOException
+        {
+          ZipFile zip = new ZipFile(WebrootExploder.this.war);
+          try
+          {
+            int i;
+            while ((i = next.getAndIncrement()) < entries.size()) {
+              bytes.addAndGet(WebrootExploder.this.unzip(zip, entries.get(i)));
+            }
+          }
+          finally
+          {
+            zip.close();
+          }
+          return null;
+        }
+      }));
+    }
+    pipeline.shutdown();
+    for (int i = 0; i < workers.size(); i++) {
+      StartupPipeline.await(workers.get(i));
+    }
+    return bytes.get();
+  }
+
+  private long unzip(ZipFile zip, ZipEntry e)
+    throws IOException
+  {
+    File f = new File(this.webroot, e.getName());
+    f.getParentFile().mkdirs();
+    InputStream in = zip.getInputStream(e);
+    try
+    {
+      Extractor.copy(in, f, e.getSize());
+    }
+    finally
+    {
+      in.close();
+    }
+    if (e.getTime() != -1L) {
+      f.setLastModified(e.getTime());
+    }
+    return e.getSize();
+  }
+
+  /**
+   * Deletes the file of an entry that is gone from the war, then its parent
+   * directories up to the webroot for as long as they are empty.
+   */
+  private void remove(File f)
+  {
+    f.delete();
+    for (File dir = f.getParentFile(); (dir != null) && (!dir.equals(this.webroot)); dir = dir.getParentFile())
+    {
+      String[] children = dir.list();
+      if ((children == null) || (children.length > 0) || (!dir.delete())) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Rejects names that would land outside the webroot.
+   */
+  private static boolean isSafe(String name)
+  {
+    String[] segments = name.replace('\\', '/').split("/");
+    for (int i = 0; i < segments.length; i++) {
+      if (segments[i].equals("..")) {
+        return false;
+      }
+    }
+    return (!name.startsWith("/")) && (!name.startsWith("\\"));
+  }
+
+  private static Map<String, String> read(File manifest)
+    throws IOException
+  {
+    Map<String, String> r = new HashMap<String, String>();
+    if (!manifest.isFile()) {
+      return r;
+    }
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+    try
+    {
+      String line;
+      while ((line = in.readLine()) != null)
+      {
+        // crc size name, where the name may contain spaces
+        int a = line.indexOf(' ');
+        int b = line.indexOf(' ', a + 1);
+        if ((a > 0) && (b > a)) {
+          r.put(line.substring(b + 1), line.substring(0, b));
+        }
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+    return r;
+  }
+
+  private static void write(File manifest, Map<String, String> entries)
+    throws IOException
+  {
+    File tmp = new File(manifest.getPath() + ".tmp");
+    Writer w = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+    try
+    {
+      for (Iterator<Map.Entry<String, String>> itr = entries.entrySet().iterator(); itr.hasNext();)
+      {
+        Map.Entry<String, String> e = itr.next();
+        w.write(e.getValue() + " " + e.getKey() + "\n");
+      }
+    }
+    finally
+    {
+      w.close();
+    }
+    if (!tmp.renameTo(manifest))
+    {
+      manifest.delete();
+      if (!tmp.renameTo(manifest)) {
+        throw new IOException("Failed to write " + manifest);
+      }
+    }
+  }
+}
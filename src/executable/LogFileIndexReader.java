@@ -0,0 +1,214 @@
+package executable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Prints the part of a {@code --logfile} log written in a time range, using
+ * the index {@code --logfileIndex} keeps next to it:
+ *
+ * <pre>
+ * java -cp jenkins.war executable.LogFileIndexReader jenkins.log "2014-02-03 10:00" "2014-02-03 10:15"
+ * </pre>
+ *
+ * The index of {@code jenkins.log} is {@code jenkins.log.idx}, and that of a
+ * rolled over {@code jenkins.log.20140203-235959.gz} is
+ * {@code jenkins.log.20140203-235959.idx}. It is a sequence of 16 byte
+ * entries, each a big-endian time in milliseconds and a big-endian offset into
+ * the uncompressed log, both increasing; the bytes before an offset were
+ * written by its time, those after it no earlier. Both ends of the range are
+ * found by binary search in the index file itself, so a lookup reads a few
+ * entries however large the log is, and the log is only read from the start
+ * of the range. The output may start and end up to one index interval beyond
+ * the range. A gzipped segment still has to be decompressed up to there.
+ */
+public final class LogFileIndexReader
+{
+  private static final int ENTRY = 16;
+  private static final String[] FORMATS = { "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd HH:mm", "yyyy-MM-dd" };
+  private final File log;
+  private final File index;
+
+  public LogFileIndexReader(File log)
+  {
+    this.log = log;
+    String n = log.getPath();
+    this.index = new File((n.endsWith(".gz") ? n.substring(0, n.length() - 3) : n) + ".idx");
+  }
+
+  /**
+   * Offsets into the log between which everything written from {@code from}
+   * to {@code to} (in milliseconds) is, the end being -1 for the end of the
+   * log.
+   */
+  public long[] find(long from, long to)
+    throws IOException
+  {
+    if (!this.index.isFile()) {
+      throw new FileNotFoundException("No index " + this.index + " for " + this.log + ", which --logfileIndex keeps");
+    }
+    RandomAccessFile in = new RandomAccessFile(this.index, "r");
+    try
+    {
+      long n = in.length() / ENTRY;
+      // the last entry no later than from
+      long i = search(in, n, from) - 1L;
+      long start = i < 0L ? 0L : offset(in, i);
+      // the first entry later than to
+      long j = search(in, n, to);
+      long end = j < n ? offset(in, j) : -1L;
+      return new long[] { start, end };
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  /**
+   * Index of the first of the n entries with a time later than t, or n.
+   */
+  private static long search(RandomAccessFile in, long n, long t)
+    throws IOException
+  {
+    long lo = 0L;
+    long hi = n;
+    while (lo < hi)
+    {
+      long mid = lo + hi >>> 1;
+      in.seek(mid * ENTRY);
+      if (in.readLong() > t) {
+        hi = mid;
+      } else {
+        lo = mid + 1L;
+      }
+    }
+    return lo;
+  }
+
+  private static long offset(RandomAccessFile in, long i)
+    throws IOException
+  {
+    in.seek(i * ENTRY + 8L);
+    return in.readLong();
+  }
+
+  /**
+   * Copies what was logged from {@code from} to {@code to} to the stream.
+   */
+  public void copy(long from, long to, OutputStream out)
+    throws IOException
+  {
+    long[] range = find(from, to);
+    long remaining = range[1] < 0L ? Long.MAX_VALUE : range[1] - range[0];
+    InputStream in;
+    if (this.log.getName().endsWith(".gz"))
+    {
+      in = new GZIPInputStream(new FileInputStream(this.log), 65536);
+      skip(in, range[0]);
+    }
+    else
+    {
+      FileInputStream fin = new FileInputStream(this.log);
+      fin.getChannel().position(range[0]);
+      in = fin;
+    }
+    try
+    {
+      byte[] buf = new byte[65536];
+      while (remaining > 0L)
+      {
+        int len = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+        if (len < 0) {
+          break;
+        }
+        out.write(buf, 0, len);
+        remaining -= len;
+      }
+      out.flush();
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+  private static void skip(InputStream in, long n)
+    throws IOException
+  {
+    while (n > 0L)
+    {
+      long skipped = in.skip(n);
+      if (skipped <= 0L) {
+        if (in.read() < 0) {
+          return;
+        }
+        skipped = 1L;
+      }
+      n -= skipped;
+    }
+  }
+
+  /**
+   * Milliseconds since the epoch, or a local time in one of
+   * {@link #FORMATS}.
+   */
+  static long parseTime(String s)
+    throws ParseException
+  {
+    if (s.matches("[0-9]+")) {
+      return Long.parseLong(s);
+    }
+    for (int i = 0; i < FORMATS.length; i++)
+    {
+      SimpleDateFormat f = new SimpleDateFormat(FORMATS[i]);
+      f.setLenient(false);
+      try
+      {
+        return f.parse(s).getTime();
+      }
+      catch (ParseException e) {}
+    }
+    throw new ParseException("Not a time: " + s, 0);
+  }
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    if ((args.length < 2) || (args.length > 3))
+    {
+      System.err.println("Usage: java -cp jenkins.war executable.LogFileIndexReader <logfile> <from> [<to>]\n\nPrints what was logged from <from> to <to>, or to the end, each being a time\nlike \"2014-02-03 10:15[:00]\" or milliseconds since the epoch.");
+      System.exit(2);
+    }
+    long from;
+    long to;
+    try
+    {
+      from = parseTime(args[1]);
+      to = args.length > 2 ? parseTime(args[2]) : Long.MAX_VALUE;
+    }
+    catch (ParseException e)
+    {
+      System.err.println(e.getMessage());
+      System.exit(2);
+      return;
+    }
+    try
+    {
+      new LogFileIndexReader(new File(args[0])).copy(from, to, System.out);
+    }
+    catch (FileNotFoundException e)
+    {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+}